@@ -0,0 +1,340 @@
+import java.util.Arrays;
+
+/**
+ * Anytime Repairing A* (ARA*, Likhachev, Gordon and Thrun) toward a fixed goal cell.
+ *
+ * The first pass runs A* with the heuristic inflated by epsilon, which finds a path
+ * quickly that is at most epsilon times longer than the shortest one. Every later pass
+ * lowers epsilon and reuses the g values of the passes before it. Only the cells whose
+ * values were improved after they were expanded (the inconsistent ones) go back onto
+ * the open list, until a pass with epsilon 1 proves the path optimal.
+ *
+ * The work is sliced by a time budget. improve runs until the budget is spent and picks
+ * up where it stopped on the next call, so no single turn has to wait for a whole
+ * search. Like DStarLitePlanner the search runs backward from the goal, so its g values
+ * are distances to the goal and stay valid while the footman walks. Moving the start
+ * changes the heuristic, which is handled with the D* Lite key modifier: keys already on
+ * the open list stay lower bounds and are only corrected when they reach the top.
+ *
+ * When the enemy footman leaves a cell, the cell gets its value from its neighbours and
+ * goes on the open list. When it steps onto a cell, the search only starts over if the
+ * cell is on the path from the start. Other cells that led through it can keep values
+ * that are too low, so every path is checked for blocked cells before it is handed out.
+ */
+class AnytimePlanner {
+
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    // epsilon is kept in halves so keys stay integers: 3.0 down to 1.0 in steps of 0.5
+    private static final int INITIAL_EPSILON_HALVES = 6;
+    private static final int FINAL_EPSILON_HALVES = 2;
+
+    // how many expansions run between checks of the clock
+    private static final int EXPANSIONS_PER_CLOCK_CHECK = 64;
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    private final int goal;
+    private final int[] moveX;
+    private final int[] moveY;
+
+    private final int[] g;
+    private final int[] parent;
+    private final int[] closedPass; // pass in which a cell was last expanded
+    private final boolean[] listedInconsistent;
+    private IndexedMinHeap open;
+    private IndexedMinHeap nextOpen; // open list of the next pass while it is being keyed
+    private int rekeyed = -1; // cells moved to nextOpen so far, -1 when not keying
+    private final int[] inconsistent;
+    private int inconsistentCount;
+
+    private int start = -1;
+    private int keyModifier;
+    private int epsilonHalves;
+    private int pass;
+    private boolean passDone; // the pass found its path, the next one has not started yet
+    private boolean finished;
+
+    // epsilon of the last path handed out, 0 before the first one
+    private int publishedEpsilonHalves;
+    private int restarts;
+
+    public AnytimePlanner(OccupancyGrid occupancy, int goalX, int goalY, boolean diagonalMoves)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        int cellCount = xExtent * occupancy.getYExtent();
+        this.goal = goalY * xExtent + goalX;
+        this.moveX = OccupancyGrid.moveX(diagonalMoves);
+        this.moveY = OccupancyGrid.moveY(diagonalMoves);
+        this.g = new int[cellCount];
+        this.parent = new int[cellCount];
+        this.closedPass = new int[cellCount];
+        this.listedInconsistent = new boolean[cellCount];
+        this.open = new IndexedMinHeap(cellCount);
+        this.nextOpen = new IndexedMinHeap(cellCount);
+        this.inconsistent = new int[cellCount];
+        restart();
+        restarts = 0;
+    }
+
+    /**
+     * Returns the epsilon bound of the last path handed out, or 0 if there is none yet
+     */
+    public double getEpsilon() {
+        return publishedEpsilonHalves / 2.0;
+    }
+
+    /**
+     * Number of times the search had to start over, because its path was blocked or the
+     * footman left it
+     */
+    public int getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * Drops the path handed out so far and starts the search over, for when the footman
+     * has ended up off it. getEpsilon returns 0 until improve finds the new path.
+     */
+    public void replan() {
+        restart();
+        publishedEpsilonHalves = 0;
+    }
+
+    /**
+     * Tells the planner the occupancy of a cell has changed. The grid must already have
+     * been updated.
+     */
+    public void cellChanged(int x, int y) {
+        int cell = y * xExtent + x;
+        if (occupancy.isBlocked(cell)) {
+            if (start != -1 && g[start] < INFINITY && onPathFromStart(cell)) {
+                restart();
+            }
+            return;
+        }
+        // a cell that opened up can only make paths shorter, so it joins the open list
+        for (int i = 0; i < moveX.length; i++) {
+            if (!occupancy.canStep(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int neighbour = cell + moveY[i] * xExtent + moveX[i];
+            if (g[neighbour] + 1 < g[cell]) {
+                g[cell] = g[neighbour] + 1;
+                parent[cell] = neighbour;
+            }
+        }
+        if (g[cell] < INFINITY) {
+            queue(cell);
+            finished = false;
+        }
+    }
+
+    /**
+     * Keeps searching for at most budgetNanos and returns the cells of the newest path
+     * found during this call, in the order they are walked and leaving out the start and
+     * the goal cell. Returns null if no new path was found, either because the budget ran
+     * out first or because the last path handed out is already optimal.
+     */
+    public int[] improve(int startX, int startY, long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        int newStart = startY * xExtent + startX;
+        if (start != -1) {
+            // keys on the open list are now too low by at most this much
+            keyModifier += epsilonHalves * occupancy.chebyshev(start, newStart);
+        }
+        start = newStart;
+
+        int[] newest = null;
+        int expansions = 0;
+        while (!finished) {
+            if (passDone) {
+                nextPass();
+            }
+            if (rekeyed >= 0) {
+                // keying the open list for the next pass takes a while, so it is sliced as well
+                while (rekeyed < inconsistentCount + open.size()) {
+                    if (++expansions % EXPANSIONS_PER_CLOCK_CHECK == 0 && System.nanoTime() > deadline) {
+                        return newest;
+                    }
+                    int cell = rekeyed < inconsistentCount ? inconsistent[rekeyed] : open.cellAt(rekeyed - inconsistentCount);
+                    nextOpen.update(cell, key(cell), heuristic(cell));
+                    rekeyed++;
+                }
+                finishRekey();
+            }
+            // a pass ends once nothing on the open list can improve the start by more than epsilon
+            while (!open.isEmpty() && 2 * g[start] + keyModifier > open.peekPriority()) {
+                if (++expansions % EXPANSIONS_PER_CLOCK_CHECK == 0 && System.nanoTime() > deadline) {
+                    return newest;
+                }
+                int cell = open.peek();
+                int key = key(cell);
+                if (key > open.peekPriority()) {
+                    // keyed for an older start, so it goes back with its real key
+                    open.update(cell, key, heuristic(cell));
+                    continue;
+                }
+                open.poll();
+                expand(cell);
+            }
+            if (g[start] >= INFINITY) {
+                // nothing left to expand and the start was never reached
+                finished = true;
+                break;
+            }
+            if (pathBlocked()) {
+                restart();
+                continue;
+            }
+            newest = extractPath();
+            publishedEpsilonHalves = epsilonHalves;
+            if (epsilonHalves == FINAL_EPSILON_HALVES) {
+                finished = true;
+                break;
+            }
+            passDone = true;
+        }
+        return newest;
+    }
+
+    private void expand(int cell) {
+        closedPass[cell] = pass;
+        if (occupancy.isBlocked(cell)) {
+            // taken by the enemy footman after it was queued
+            return;
+        }
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            if (!occupancy.canStep(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int neighbour = cell + moveY[i] * xExtent + moveX[i];
+            if (g[cell] + 1 < g[neighbour]) {
+                g[neighbour] = g[cell] + 1;
+                parent[neighbour] = cell;
+                queue(neighbour);
+            }
+        }
+    }
+
+    /**
+     * Puts a cell whose g value just improved on the open list, or on the inconsistent
+     * list if it was already expanded in this pass
+     */
+    private void queue(int cell) {
+        if (closedPass[cell] == pass) {
+            if (!listedInconsistent[cell]) {
+                listedInconsistent[cell] = true;
+                inconsistent[inconsistentCount++] = cell;
+            }
+        }
+        else if (rekeyed >= 0) {
+            // the cells moved to the next open list so far are not looked at again
+            nextOpen.update(cell, key(cell), heuristic(cell));
+        }
+        else {
+            open.update(cell, key(cell), heuristic(cell));
+        }
+    }
+
+    /**
+     * Lowers epsilon and starts the next pass. Epsilon scales every key, so the open list
+     * and the inconsistent cells are keyed again into nextOpen, a slice at a time.
+     */
+    private void nextPass() {
+        passDone = false;
+        epsilonHalves--;
+        pass++;
+        keyModifier = 0;
+        rekeyed = 0;
+    }
+
+    /**
+     * Swaps in the open list keyed for the new epsilon
+     */
+    private void finishRekey() {
+        for (int i = 0; i < inconsistentCount; i++) {
+            listedInconsistent[inconsistent[i]] = false;
+        }
+        inconsistentCount = 0;
+        open.clear();
+        IndexedMinHeap keyed = nextOpen;
+        nextOpen = open;
+        open = keyed;
+        rekeyed = -1;
+    }
+
+    private void restart() {
+        Arrays.fill(g, INFINITY);
+        for (int i = 0; i < inconsistentCount; i++) {
+            listedInconsistent[inconsistent[i]] = false;
+        }
+        open.clear();
+        nextOpen.clear();
+        rekeyed = -1;
+        inconsistentCount = 0;
+        epsilonHalves = INITIAL_EPSILON_HALVES;
+        keyModifier = 0;
+        pass++;
+        passDone = false;
+        finished = false;
+        restarts++;
+
+        g[goal] = 0;
+        parent[goal] = -1;
+        queue(goal);
+    }
+
+    /**
+     * Returns true if a cell lies on the parent chain from the start to the goal
+     */
+    private boolean onPathFromStart(int cell) {
+        for (int step = parent[start]; step != goal; step = parent[step]) {
+            if (step == cell) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the parent chain from the start runs through a blocked cell
+     */
+    private boolean pathBlocked() {
+        for (int step = parent[start]; step != goal; step = parent[step]) {
+            if (occupancy.isBlocked(step)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Follows the parents from the start to the goal, leaving out both ends
+     */
+    private int[] extractPath() {
+        // a parent may have improved since it was linked, so the chain can be shorter than g
+        int length = 0;
+        for (int cell = parent[start]; cell != goal; cell = parent[cell]) {
+            length++;
+        }
+        int[] cells = new int[length];
+        int cell = parent[start];
+        for (int i = 0; i < length; i++) {
+            cells[i] = cell;
+            cell = parent[cell];
+        }
+        return cells;
+    }
+
+    private int key(int cell) {
+        return 2 * g[cell] + epsilonHalves * heuristic(cell) + keyModifier;
+    }
+
+    private int heuristic(int cell) {
+        return start == -1 ? 0 : occupancy.chebyshev(start, cell);
+    }
+}
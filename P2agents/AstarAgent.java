@@ -1,7 +1,6 @@
 import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
-import edu.cwru.sepia.environment.model.state.ResourceNode;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.util.Direction;
@@ -20,6 +19,20 @@ import java.util.*;
  */
 public class AstarAgent extends Agent {
 
+    /**
+     * Search engines that findPath can use, selected with the planner agent argument
+     */
+    enum PlannerMode {
+        ASTAR,  // plain A* from scratch on every plan
+        DSTAR,  // incremental D* Lite that repairs its previous search
+        JPS,    // Jump Point Search over eight connected moves
+        HPA,    // hierarchical A* over a cached cluster abstraction
+        COOPERATIVE,  // windowed cooperative A* moving every footman of the player together
+        ANYTIME,      // ARA* that improves its path a slice at a time within a per turn budget
+        FLOWFIELD,    // one shared distance field toward the townhall that every footman follows
+        SPACETIME     // space-time A* around where the enemy footman is expected to move
+    }
+
     class MapLocation
     {
         public int x, y;
@@ -65,24 +78,193 @@ public class AstarAgent extends Agent {
                 return this.x == ((MapLocation) obj).x && this.y == ((MapLocation) obj).y;
             }
         }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
     }
 
     Stack<MapLocation> path;
     int footmanID, townhallID, enemyFootmanID;
     MapLocation nextLoc;
 
+    // resource bitmap built once per map, with the enemy footman as an overlay
+    OccupancyGrid occupancy;
+    MapLocation blockerLoc;
+
+    PlannerMode plannerMode = PlannerMode.ASTAR;
+    DStarLitePlanner dstarPlanner;
+    JumpPointSearch jumpPointSearch;
+    HierarchicalPlanner hierarchicalPlanner;
+    int clusterSize = 10;
+
+    // lets AstarSearch take diagonal steps as well as cardinal ones
+    boolean diagonalMoves = false;
+
+    // every footman of the player, in priority order, when they are planned together
+    List<Integer> footmanIDs;
+    CooperativePlanner cooperativePlanner;
+    int window = 16;
+
+    AnytimePlanner anytimePlanner;
+    long planBudget = 2000000; // nsecs of planning allowed per turn
+
+    FlowField flowField;
+    boolean[] takenCells; // cells the footmen stand on or move into during a flow field turn
+
+    // shared by every agent in the JVM so paths carry over between replans and episodes
+    private static PathCache pathCache;
+    int pathCacheCapacity = 256;
+
+    // search state reused by every AstarSearch on a map of the same size
+    private SearchBuffers searchBuffers;
+    private BucketQueue openBuckets;
+
+    // cost of stepping onto each cell for AstarSearch, null when every step costs 1
+    TerrainWeights terrainWeights;
+    int towerPenalty = 0; // added to the cells within range of an enemy tower
+
+    // component labels of the free cells, so findPath can tell an unreachable townhall without searching
+    ConnectivityIndex connectivity;
+
+    // stack index of every cell on the current path, valid where pathMark holds pathNumber
+    private int[] pathSlot;
+    private int[] pathMark;
+    private int pathNumber;
+    int lookahead = 8; // path steps checked for the enemy footman, 0 checks the whole path
+    private int replans = 0;
+
+    SpaceTimePlanner spaceTimePlanner;
+    int horizon = 8; // turns of predicted enemy movement planned around
+
+    // straight runs of the path are walked with one compound move to their far end
+    boolean waypointMoves = true;
+    MapLocation waypoint; // far end of the run being walked, null while stepping cell by cell
+    private Stack<MapLocation> waypointPath; // path the waypoint was taken from
+    private int lastFootmanCell = -1;
+
+    // runs planner=astar searches on a worker thread while the footman keeps walking
+    boolean asyncPlanning = false;
+    AsyncPlanner asyncPlanner;
+
+    // landmark distance tables for AstarSearch, built once per map and shared like the path cache
+    private static LandmarkHeuristic landmarkHeuristic;
+    int landmarkCount = 8;
+
     private long totalPlanTime = 0; // nsecs
     private long totalExecutionTime = 0; //nsecs
+    private long longestPlanTime = 0; // nsecs, in a single turn
+
+    // enemy footman distance at which the footman steps cell by cell instead of along waypoints
+    private static final int WAYPOINT_CLEARANCE = 2;
+
+    // offsets of the four cardinal neighbours
+    private static final int[] CARDINAL_X = OccupancyGrid.moveX(false);
+    private static final int[] CARDINAL_Y = OccupancyGrid.moveY(false);
+
+    // offsets of all eight neighbours, cardinal ones first
+    private static final int[] NEIGHBOUR_X = OccupancyGrid.moveX(true);
+    private static final int[] NEIGHBOUR_Y = OccupancyGrid.moveY(true);
 
     public AstarAgent(int playernum)
+    {
+        this(playernum, new String[0]);
+    }
+
+    public AstarAgent(int playernum, String[] args)
     {
         super(playernum);
 
-        System.out.println("Constructed AstarAgent");
+        parseArguments(args);
+        if(asyncPlanning && plannerMode != PlannerMode.ASTAR) {
+            System.err.println("Asynchronous planning only runs planner=astar, planning synchronously");
+            asyncPlanning = false;
+        }
+
+        if(pathCache == null || pathCache.getCapacity() != pathCacheCapacity) {
+            pathCache = new PathCache(pathCacheCapacity);
+        }
+
+        System.out.println("Constructed AstarAgent using the " + plannerMode + " planner"
+                + (diagonalMoves ? " with diagonal moves" : "")
+                + (asyncPlanning ? " on a worker thread" : ""));
+    }
+
+    /**
+     * Reads the optional agent arguments, given as name=value pairs (e.g. planner=dstar)
+     */
+    private void parseArguments(String[] args) {
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                System.err.println("Ignoring malformed argument " + arg);
+                continue;
+            }
+            String name = pair[0].trim().toLowerCase();
+            String value = pair[1].trim();
+            // a setting whose value does not parse keeps its default, like an unknown planner
+            try {
+                if (name.equals("planner")) {
+                    try {
+                        plannerMode = PlannerMode.valueOf(value.toUpperCase());
+                    }
+                    catch (IllegalArgumentException e) {
+                        System.err.println("Unknown planner " + value + ", using " + plannerMode);
+                    }
+                }
+                else if (name.equals("clustersize")) {
+                    clusterSize = Integer.parseInt(value);
+                }
+                else if (name.equals("pathcache")) {
+                    pathCacheCapacity = Integer.parseInt(value);
+                }
+                else if (name.equals("diagonal")) {
+                    diagonalMoves = Boolean.parseBoolean(value);
+                }
+                else if (name.equals("window")) {
+                    window = Integer.parseInt(value);
+                }
+                else if (name.equals("budget")) {
+                    planBudget = Long.parseLong(value);
+                }
+                else if (name.equals("landmarks")) {
+                    landmarkCount = Integer.parseInt(value);
+                }
+                else if (name.equals("lookahead")) {
+                    lookahead = Integer.parseInt(value);
+                }
+                else if (name.equals("horizon")) {
+                    horizon = Integer.parseInt(value);
+                }
+                else if (name.equals("async")) {
+                    asyncPlanning = Boolean.parseBoolean(value);
+                }
+                else if (name.equals("waypoints")) {
+                    waypointMoves = Boolean.parseBoolean(value);
+                }
+                else if (name.equals("towerpenalty")) {
+                    towerPenalty = Integer.parseInt(value);
+                }
+                else {
+                    System.err.println("Unknown argument " + name);
+                }
+            }
+            catch (NumberFormatException e) {
+                System.err.println("Ignoring " + arg + ", " + value + " is not a number");
+            }
+        }
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+        if(asyncPlanner != null) {
+            // a planner left over from an episode that ended without a terminal step, stopped
+            // before any of the agent fields it was created from change
+            asyncPlanner.shutdown();
+            asyncPlanner = null;
+        }
+
         // get the footman location
         List<Integer> unitIDs = newstate.getUnitIds(playernum);
 
@@ -101,6 +283,14 @@ public class AstarAgent extends Agent {
             return null;
         }
 
+        footmanIDs = new ArrayList<Integer>();
+        for(Integer unitID : unitIDs)
+        {
+            if(newstate.getUnit(unitID).getTemplateView().getName().equals("Footman")) {
+                footmanIDs.add(unitID);
+            }
+        }
+
         // find the enemy playernum
         Integer[] playerNums = newstate.getPlayerNumbers();
         int enemyPlayerNum = -1;
@@ -129,6 +319,7 @@ public class AstarAgent extends Agent {
 
         townhallID = -1;
         enemyFootmanID = -1;
+        List<Integer> towerIDs = new ArrayList<Integer>();
         for(Integer unitID : enemyUnitIDs)
         {
             Unit.UnitView tempUnit = newstate.getUnit(unitID);
@@ -141,6 +332,10 @@ public class AstarAgent extends Agent {
             {
                 enemyFootmanID = unitID;
             }
+            else if(unitType.endsWith("tower"))
+            {
+                towerIDs.add(unitID);
+            }
             else
             {
                 System.err.println("Unknown unit type");
@@ -153,7 +348,84 @@ public class AstarAgent extends Agent {
         }
 
         long startTime = System.nanoTime();
+        occupancy = OccupancyGrid.fromResources(newstate);
+        terrainWeights = null;
+        if(towerPenalty > 0 && !towerIDs.isEmpty()) {
+            terrainWeights = new TerrainWeights(occupancy.getXExtent(), occupancy.getYExtent());
+            for(Integer towerID : towerIDs) {
+                Unit.UnitView tower = newstate.getUnit(towerID);
+                int range = Math.max(1, tower.getTemplateView().getRange());
+                terrainWeights.addPenaltyAround(tower.getXPosition(), tower.getYPosition(), range, towerPenalty);
+            }
+        }
+        blockerLoc = null;
+        waypoint = null;
+        lastFootmanCell = -1;
+        dstarPlanner = null;
+        jumpPointSearch = new JumpPointSearch(occupancy);
+        hierarchicalPlanner = null;
+        anytimePlanner = null;
+        flowField = null;
+        connectivity = null;
+        spaceTimePlanner = null;
+        if(plannerMode == PlannerMode.SPACETIME) {
+            spaceTimePlanner = new SpaceTimePlanner(occupancy, horizon, diagonalMoves);
+            observeEnemy(newstate);
+        }
+        if(plannerMode == PlannerMode.FLOWFIELD) {
+            // one field for every footman, kept up to date as the enemy footman moves
+            Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
+            flowField = new FlowField(occupancy, townhallUnit.getXPosition(), townhallUnit.getYPosition(), diagonalMoves);
+            takenCells = new boolean[occupancy.getXExtent() * occupancy.getYExtent()];
+            totalPlanTime += System.nanoTime() - startTime;
+            return middleStep(newstate, statehistory);
+        }
+        if(plannerMode == PlannerMode.COOPERATIVE) {
+            // the footmen are planned turn by turn in middleStep
+            cooperativePlanner = new CooperativePlanner(occupancy, window, diagonalMoves);
+            totalPlanTime += System.nanoTime() - startTime;
+            return middleStep(newstate, statehistory);
+        }
+        if(plannerMode == PlannerMode.ANYTIME) {
+            // the search runs in middleStep, a budget's worth every turn
+            Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
+            anytimePlanner = new AnytimePlanner(occupancy, townhallUnit.getXPosition(), townhallUnit.getYPosition(), diagonalMoves);
+            path = new Stack<MapLocation>();
+            totalPlanTime += System.nanoTime() - startTime;
+            return middleStep(newstate, statehistory);
+        }
+        Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
+        connectivity = new ConnectivityIndex(occupancy, cellIndex(townhallUnit.getXPosition(), townhallUnit.getYPosition(), occupancy.getXExtent()));
+        if(asyncPlanning) {
+            // there is no old path to walk yet, so the first one is still planned below
+            asyncPlanner = new AsyncPlanner(new AsyncPlanner.Search() {
+                // the worker's own buffers, the turn thread keeps searching with the agent's
+                private SearchBuffers buffers;
+                private BucketQueue open;
+                // the settings for this episode, taken now so the worker never reads the agent's
+                // fields, and the landmark tables built here so it never writes the shared ones
+                private final TerrainWeights weights = terrainWeights == null ? null : terrainWeights.copy();
+                private final boolean diagonal = diagonalMoves;
+                private final LandmarkHeuristic landmarks = getLandmarkHeuristic(occupancy);
+
+                @Override
+                public int[] search(OccupancyGrid grid, int start, int goal) {
+                    int xExtent = grid.getXExtent();
+                    int cellCount = xExtent * grid.getYExtent();
+                    if (buffers == null || buffers.getCellCount() != cellCount) {
+                        buffers = new SearchBuffers(cellCount);
+                        open = new BucketQueue(cellCount);
+                    }
+                    return AstarSearch(new MapLocation(start % xExtent, start / xExtent, null, 0),
+                            new MapLocation(goal % xExtent, goal / xExtent, null, 0), grid, buffers, open,
+                            weights, diagonal, landmarks);
+                }
+            });
+        }
         path = findPath(newstate);
+        if(path == null) {
+            System.out.println("No path to the townhall, waiting for one to open up");
+        }
         totalPlanTime += System.nanoTime() - startTime;
 
         return middleStep(newstate, statehistory);
@@ -161,16 +433,66 @@ public class AstarAgent extends Agent {
 
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+        if(plannerMode == PlannerMode.COOPERATIVE) {
+            return cooperativeStep(newstate, statehistory);
+        }
+        if(plannerMode == PlannerMode.FLOWFIELD) {
+            return flowFieldStep(newstate, statehistory);
+        }
+
         long startTime = System.nanoTime();
         long planTime = 0;
 
         Map<Integer, Action> actions = new HashMap<Integer, Action>();
 
-        if(shouldReplanPath(newstate, statehistory, path)) {
+        observeEnemy(newstate);
+
+        if(plannerMode == PlannerMode.ANYTIME) {
+            long planStartTime = System.nanoTime();
+            improveAnytimePath(newstate);
+            planTime = System.nanoTime() - planStartTime;
+            totalPlanTime += planTime;
+            longestPlanTime = Math.max(longestPlanTime, planTime);
+
+            // no path within the budget yet, so wait for the next turn's slice
+            if(anytimePlanner.getEpsilon() == 0) {
+                totalExecutionTime += System.nanoTime() - startTime - planTime;
+                return actions;
+            }
+        }
+        else if(asyncPlanner != null) {
+            long planStartTime = System.nanoTime();
+            updateAsyncPath(newstate, statehistory);
+            planTime = System.nanoTime() - planStartTime;
+            totalPlanTime += planTime;
+            longestPlanTime = Math.max(longestPlanTime, planTime);
+
+            // waiting for the worker, or for a way to the townhall to open up
+            if(path == null) {
+                totalExecutionTime += System.nanoTime() - startTime - planTime;
+                return actions;
+            }
+        }
+        else if(path == null || shouldReplanPath(newstate, statehistory, path)) {
+            // a footman with no path asks again every turn, which is a single label check
+            // until the enemy footman moves out of the way
+            boolean hadPath = path != null;
             long planStartTime = System.nanoTime();
             path = findPath(newstate);
+            // the new path starts from where the footman stands now
+            nextLoc = null;
+            replans++;
             planTime = System.nanoTime() - planStartTime;
             totalPlanTime += planTime;
+            longestPlanTime = Math.max(longestPlanTime, planTime);
+
+            if(path == null) {
+                if(hadPath) {
+                    System.out.println("No path to the townhall, waiting for one to open up");
+                }
+                totalExecutionTime += System.nanoTime() - startTime - planTime;
+                return actions;
+            }
         }
 
         Unit.UnitView footmanUnit = newstate.getUnit(footmanID);
@@ -178,24 +500,91 @@ public class AstarAgent extends Agent {
         int footmanX = footmanUnit.getXPosition();
         int footmanY = footmanUnit.getYPosition();
 
+        boolean hadWaypoint = waypoint != null;
+        boolean waypointUnderWay = waypointUnderWay(newstate, footmanX, footmanY);
+        if(waypoint != null && footmanX == waypoint.x && footmanY == waypoint.y) {
+            // the engine may have taken another way to the waypoint, so skip the run's cells
+            while(nextLoc != null && !nextLoc.equals(waypoint) && !path.empty()) {
+                nextLoc = path.pop();
+            }
+            waypoint = null;
+        }
+        else if(hadWaypoint && !waypointUnderWay && nextLoc != null && !rejoinPath(footmanX, footmanY)) {
+            // the run was cut short off the path, so the old steps no longer lead anywhere and a
+            // new path is planned the way this planner mode plans every other one
+            long planStartTime = System.nanoTime();
+            path = null;
+            nextLoc = null;
+            if(plannerMode == PlannerMode.ANYTIME) {
+                // the search starts over from the footman's cell in the next turn's slice
+                anytimePlanner.replan();
+            }
+            else if(asyncPlanner != null) {
+                // the worker plans from the footman's cell while the turn goes on
+                updateAsyncPath(newstate, statehistory);
+            }
+            else {
+                path = findPath(newstate);
+                replans++;
+            }
+            long replanTime = System.nanoTime() - planStartTime;
+            planTime += replanTime;
+            totalPlanTime += replanTime;
+            longestPlanTime = Math.max(longestPlanTime, replanTime);
+
+            if(path == null) {
+                if(plannerMode != PlannerMode.ANYTIME && asyncPlanner == null) {
+                    System.out.println("No path to the townhall, waiting for one to open up");
+                }
+                totalExecutionTime += System.nanoTime() - startTime - planTime;
+                return actions;
+            }
+        }
+
         if(!path.empty() && (nextLoc == null || (footmanX == nextLoc.x && footmanY == nextLoc.y))) {
 
             // stat moving to the next step in the path
             nextLoc = path.pop();
 
-            System.out.println("Moving to (" + nextLoc.x + ", " + nextLoc.y + ")");
+            if(!waypointMoves) {
+                System.out.println("Moving to (" + nextLoc.x + ", " + nextLoc.y + ")");
+            }
         }
 
         if(nextLoc != null && (footmanX != nextLoc.x || footmanY != nextLoc.y))
         {
-            int xDiff = nextLoc.x - footmanX;
-            int yDiff = nextLoc.y - footmanY;
+            MapLocation runEnd = nextLoc;
+            if(!waypointUnderWay && waypointMoves && !enemyNearby(newstate, footmanX, footmanY)) {
+                runEnd = straightRunEnd(footmanX, footmanY);
+            }
+
+            if(waypointUnderWay) {
+                // the compound move is still walking the run, so the engine needs nothing new
+            }
+            else if(runEnd != nextLoc) {
+                waypoint = runEnd;
+                waypointPath = path;
+                actions.put(footmanID, Action.createCompoundMove(footmanID, runEnd.x, runEnd.y));
+                System.out.println("Moving to (" + runEnd.x + ", " + runEnd.y + ")");
+            }
+            else {
+                int xDiff = nextLoc.x - footmanX;
+                int yDiff = nextLoc.y - footmanY;
 
-            // figure out the direction the footman needs to move in
-            Direction nextDirection = getNextDirection(xDiff, yDiff);
+                // figure out the direction the footman needs to move in
+                Direction nextDirection = getNextDirection(xDiff, yDiff);
 
-            actions.put(footmanID, Action.createPrimitiveMove(footmanID, nextDirection));
-        } else {
+                waypoint = null;
+                actions.put(footmanID, Action.createPrimitiveMove(footmanID, nextDirection));
+                if(waypointMoves) {
+                    System.out.println("Moving to (" + nextLoc.x + ", " + nextLoc.y + ")");
+                }
+            }
+        }
+        else if(nextLoc != null && !path.empty()) {
+            // a space-time plan waits here this turn to let the enemy footman pass
+        }
+        else {
             Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
 
             // if townhall was destroyed on the last turn
@@ -222,12 +611,152 @@ public class AstarAgent extends Agent {
         return actions;
     }
 
+    /**
+     * Moves every footman one step along the cooperative plan, and lets the ones that are
+     * next to the townhall and not moving attack it
+     */
+    private Map<Integer, Action> cooperativeStep(State.StateView newstate, History.HistoryView statehistory) {
+        long startTime = System.nanoTime();
+
+        Map<Integer, Action> actions = new HashMap<Integer, Action>();
+
+        Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
+
+        // if townhall was destroyed on the last turn
+        if(townhallUnit == null) {
+            terminalStep(newstate, statehistory);
+            return actions;
+        }
+
+        updateBlockerOverlay(newstate);
+
+        // footmen that died are left out and lose their reservations
+        List<Unit.UnitView> footmen = new ArrayList<Unit.UnitView>();
+        for(Integer unitID : footmanIDs) {
+            Unit.UnitView footmanUnit = newstate.getUnit(unitID);
+            if(footmanUnit != null) {
+                footmen.add(footmanUnit);
+            }
+        }
+        int xExtent = occupancy.getXExtent();
+        int[] unitIDs = new int[footmen.size()];
+        int[] cells = new int[footmen.size()];
+        for(int i = 0; i < unitIDs.length; i++) {
+            unitIDs[i] = footmen.get(i).getID();
+            cells[i] = cellIndex(footmen.get(i).getXPosition(), footmen.get(i).getYPosition(), xExtent);
+        }
+
+        long planStartTime = System.nanoTime();
+        MapLocation townhallLoc = new MapLocation(townhallUnit.getXPosition(), townhallUnit.getYPosition(), null, 0);
+        int[] nextCells = cooperativePlanner.step(unitIDs, cells, cellIndex(townhallLoc.x, townhallLoc.y, xExtent));
+        long planTime = System.nanoTime() - planStartTime;
+        totalPlanTime += planTime;
+        longestPlanTime = Math.max(longestPlanTime, planTime);
+
+        for(int i = 0; i < unitIDs.length; i++) {
+            int footmanX = cells[i] % xExtent;
+            int footmanY = cells[i] / xExtent;
+            if(nextCells[i] != cells[i]) {
+                Direction nextDirection = getNextDirection(nextCells[i] % xExtent - footmanX, nextCells[i] / xExtent - footmanY);
+                actions.put(unitIDs[i], Action.createPrimitiveMove(unitIDs[i], nextDirection));
+            }
+            else if(Math.abs(footmanX - townhallLoc.x) <= 1 && Math.abs(footmanY - townhallLoc.y) <= 1) {
+                actions.put(unitIDs[i], Action.createPrimitiveAttack(unitIDs[i], townhallID));
+            }
+        }
+
+        totalExecutionTime += System.nanoTime() - startTime - planTime;
+        return actions;
+    }
+
+    /**
+     * Moves every footman one step down the flow field, and lets the ones next to the
+     * townhall attack it. A footman whose next cell is taken by another one steps to a
+     * different cell that is just as close if there is one, and otherwise waits a turn.
+     */
+    private Map<Integer, Action> flowFieldStep(State.StateView newstate, History.HistoryView statehistory) {
+        long startTime = System.nanoTime();
+
+        Map<Integer, Action> actions = new HashMap<Integer, Action>();
+
+        Unit.UnitView townhallUnit = newstate.getUnit(townhallID);
+
+        // if townhall was destroyed on the last turn
+        if(townhallUnit == null) {
+            terminalStep(newstate, statehistory);
+            return actions;
+        }
+
+        // the overlay update repairs the field wherever the enemy footman moved
+        long planStartTime = System.nanoTime();
+        updateBlockerOverlay(newstate);
+        long planTime = System.nanoTime() - planStartTime;
+        totalPlanTime += planTime;
+        longestPlanTime = Math.max(longestPlanTime, planTime);
+
+        int xExtent = occupancy.getXExtent();
+        List<Unit.UnitView> footmen = new ArrayList<Unit.UnitView>();
+        for(Integer unitID : footmanIDs) {
+            Unit.UnitView footmanUnit = newstate.getUnit(unitID);
+            if(footmanUnit != null) {
+                footmen.add(footmanUnit);
+            }
+        }
+        // every footman's cell and every cell moved into, so only these are cleared afterwards
+        int[] marked = new int[2 * footmen.size()];
+        int markedCount = 0;
+        for(Unit.UnitView footmanUnit : footmen) {
+            marked[markedCount] = cellIndex(footmanUnit.getXPosition(), footmanUnit.getYPosition(), xExtent);
+            takenCells[marked[markedCount++]] = true;
+        }
+
+        for(Unit.UnitView footmanUnit : footmen) {
+            int footmanX = footmanUnit.getXPosition();
+            int footmanY = footmanUnit.getYPosition();
+            int cell = cellIndex(footmanX, footmanY, xExtent);
+            int nextCell = flowField.nextCell(cell, takenCells);
+            if(nextCell != -1) {
+                marked[markedCount++] = nextCell;
+                takenCells[nextCell] = true;
+                Direction nextDirection = getNextDirection(nextCell % xExtent - footmanX, nextCell / xExtent - footmanY);
+                actions.put(footmanUnit.getID(), Action.createPrimitiveMove(footmanUnit.getID(), nextDirection));
+            }
+            else if(flowField.getDistance(cell) == 0) {
+                actions.put(footmanUnit.getID(), Action.createPrimitiveAttack(footmanUnit.getID(), townhallID));
+            }
+        }
+
+        for(int i = 0; i < markedCount; i++) {
+            takenCells[marked[i]] = false;
+        }
+
+        totalExecutionTime += System.nanoTime() - startTime - planTime;
+        return actions;
+    }
+
     @Override
     public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
         System.out.println("Total turns: " + newstate.getTurnNumber());
         System.out.println("Total planning time: " + totalPlanTime/1e9);
         System.out.println("Total execution time: " + totalExecutionTime/1e9);
         System.out.println("Total time: " + (totalExecutionTime + totalPlanTime)/1e9);
+        System.out.println("Longest planning turn: " + longestPlanTime/1e9);
+        System.out.println("Replans: " + replans);
+        if(asyncPlanner != null) {
+            asyncPlanner.shutdown();
+            System.out.println("Worker searches: " + asyncPlanner.getSubmitted() + ", cancelled: " + asyncPlanner.getCancelled());
+        }
+        if(cooperativePlanner != null) {
+            System.out.println("Cooperative searches: " + cooperativePlanner.getSearches());
+        }
+        if(flowField != null) {
+            System.out.println("Flow field cell updates: " + flowField.getUpdates());
+        }
+        if(anytimePlanner != null) {
+            System.out.println("Anytime path bound: " + anytimePlanner.getEpsilon() + ", restarts: " + anytimePlanner.getRestarts());
+        }
+        System.out.println("Path cache: " + pathCache.getHits() + " hits, " + pathCache.getMisses() + " misses, "
+                + pathCache.getEvictions() + " evictions, " + pathCache.size() + "/" + pathCache.getCapacity() + " entries");
     }
 
     @Override
@@ -247,6 +776,11 @@ public class AstarAgent extends Agent {
      * and false otherwise. This will be necessary on the dynamic map where the
      * footman will move to block your unit.
      *
+     * The enemy footman is looked up in the cells marked by markPathCells, so the check
+     * does not depend on the length of the path. It only counts when it stands within the
+     * next lookahead steps. Further along it will most likely have moved on before the
+     * footman gets there, and the check runs again every turn as the footman comes closer.
+     *
      * @param state
      * @param history
      * @param currentPath
@@ -255,16 +789,168 @@ public class AstarAgent extends Agent {
     private boolean shouldReplanPath(State.StateView state, History.HistoryView history, Stack<MapLocation> currentPath)
     {
     	
+    	if(spaceTimePlanner != null) {
+    		return predictedConflict(state, currentPath);
+    	}
+
     	//If this is a map without an enemyFootman
     	if(enemyFootmanID != -1){
         	Unit.UnitView blockerFootman = state.getUnit(enemyFootmanID);
-    		MapLocation enemyLoc = new MapLocation(blockerFootman.getXPosition(), blockerFootman.getYPosition(), null, 0);
-    		if(currentPath.contains(enemyLoc))
-    			return true;    
+        	int enemyX = blockerFootman.getXPosition();
+        	int enemyY = blockerFootman.getYPosition();
+        	// the cell the footman is stepping into this turn is always close enough to matter
+        	if(nextLoc != null && nextLoc.x == enemyX && nextLoc.y == enemyY) {
+        		return true;
+        	}
+        	int cell = cellIndex(enemyX, enemyY, occupancy.getXExtent());
+        	if(pathMark[cell] == pathNumber && pathSlot[cell] < currentPath.size()) {
+        		// the top of the stack is the next step, so this is how many steps away the enemy is
+        		int stepsAhead = currentPath.size() - pathSlot[cell];
+        		return lookahead <= 0 || stepsAhead <= lookahead;
+        	}
     	}
     	return false;
     }
 
+    /**
+     * Replan check for planner=spacetime. The path was planned around where the enemy
+     * footman was expected to go, so the enemy standing on a later cell of it says little,
+     * and a prediction many turns out changes with every move it makes. Only the step the
+     * footman takes this turn is checked against the latest prediction. Replanning on
+     * later steps as well fired several times as often in testing without saving any turns.
+     */
+    private boolean predictedConflict(State.StateView state, Stack<MapLocation> currentPath)
+    {
+        if(enemyFootmanID == -1) {
+            return false;
+        }
+        Unit.UnitView footmanUnit = state.getUnit(footmanID);
+        MapLocation step = nextLoc;
+        if(step == null || (step.x == footmanUnit.getXPosition() && step.y == footmanUnit.getYPosition())) {
+            if(currentPath.empty()) {
+                return false;
+            }
+            step = currentPath.peek();
+        }
+        return spaceTimePlanner.conflicts(1, cellIndex(step.x, step.y, occupancy.getXExtent()));
+    }
+
+    /**
+     * Tells the space-time planner where the enemy footman is this turn
+     */
+    private void observeEnemy(State.StateView state)
+    {
+        if(spaceTimePlanner != null && enemyFootmanID != -1) {
+            Unit.UnitView enemyFootmanUnit = state.getUnit(enemyFootmanID);
+            int cell = cellIndex(enemyFootmanUnit.getXPosition(), enemyFootmanUnit.getYPosition(), occupancy.getXExtent());
+            spaceTimePlanner.observe(cell, state.getTurnNumber());
+        }
+    }
+
+    /**
+     * Returns true if the footman is walking a straight run with a compound move that can
+     * be left to carry on this turn. It must still be on the path the run was taken from,
+     * must have moved since the last turn, as a stalled compound move has failed, and the
+     * enemy footman must not have come close.
+     */
+    private boolean waypointUnderWay(State.StateView state, int footmanX, int footmanY)
+    {
+        int footmanCell = cellIndex(footmanX, footmanY, occupancy.getXExtent());
+        boolean moved = footmanCell != lastFootmanCell;
+        lastFootmanCell = footmanCell;
+        if(waypoint == null || waypointPath != path || !moved || enemyNearby(state, footmanX, footmanY)) {
+            waypoint = null;
+            return false;
+        }
+        return footmanX != waypoint.x || footmanY != waypoint.y;
+    }
+
+    /**
+     * Picks the path back up after a compound move was abandoned part way. A compound move
+     * may take another route of the same length or stop early, so the footman can be past
+     * nextLoc or beside the path. If it stands on the rest of the path, nextLoc moves up to
+     * its cell so the next step is taken from there. Otherwise the path is only kept if
+     * nextLoc is one allowed step away, and false is returned when it has to be replanned.
+     */
+    private boolean rejoinPath(int footmanX, int footmanY)
+    {
+        if(footmanX == nextLoc.x && footmanY == nextLoc.y) {
+            return true;
+        }
+        // the bottom of the stack is the end of the path, so the first match is the furthest along
+        for(int i = 0; i < path.size(); i++) {
+            MapLocation cell = path.get(i);
+            if(cell.x == footmanX && cell.y == footmanY) {
+                while(nextLoc.x != footmanX || nextLoc.y != footmanY) {
+                    nextLoc = path.pop();
+                }
+                return true;
+            }
+        }
+        int dx = nextLoc.x - footmanX;
+        int dy = nextLoc.y - footmanY;
+        return OccupancyGrid.chebyshev(footmanX, footmanY, nextLoc.x, nextLoc.y) == 1
+                && (diagonalMoves || dx == 0 || dy == 0)
+                && occupancy.canStep(footmanX, footmanY, dx, dy);
+    }
+
+    /**
+     * Returns the last cell of the straight run of path cells that starts with the step to
+     * nextLoc, or nextLoc itself if the path turns right after it. Waits in a space-time
+     * plan repeat a cell, which ends the run as well.
+     */
+    private MapLocation straightRunEnd(int footmanX, int footmanY)
+    {
+        int dx = nextLoc.x - footmanX;
+        int dy = nextLoc.y - footmanY;
+        MapLocation end = nextLoc;
+        for(int i = path.size() - 1; i >= 0; i--) {
+            MapLocation cell = path.get(i);
+            if(cell.x - end.x != dx || cell.y - end.y != dy) {
+                break;
+            }
+            end = cell;
+        }
+        return end;
+    }
+
+    /**
+     * Returns true if the enemy footman is close enough to get in the way within a turn or
+     * two, where the footman has to watch every step
+     */
+    private boolean enemyNearby(State.StateView state, int footmanX, int footmanY)
+    {
+        if(enemyFootmanID == -1) {
+            return false;
+        }
+        Unit.UnitView enemyFootmanUnit = state.getUnit(enemyFootmanID);
+        return enemyFootmanUnit != null
+                && OccupancyGrid.chebyshev(footmanX, footmanY, enemyFootmanUnit.getXPosition(),
+                        enemyFootmanUnit.getYPosition()) <= WAYPOINT_CLEARANCE;
+    }
+
+    /**
+     * Records which stack index each cell of a new path has, so shouldReplanPath can find
+     * the enemy footman on it with one lookup instead of a scan
+     */
+    private void markPathCells(int[] cells) {
+        int cellCount = occupancy.getXExtent() * occupancy.getYExtent();
+        if(pathSlot == null || pathSlot.length != cellCount) {
+            pathSlot = new int[cellCount];
+            pathMark = new int[cellCount];
+            pathNumber = 0;
+        }
+        pathNumber++;
+        if(cells == null) {
+            return;
+        }
+        for(int i = 0; i < cells.length; i++) {
+            // the first cell walked is the top of the stack
+            pathSlot[cells[i]] = cells.length - 1 - i;
+            pathMark[cells[i]] = pathNumber;
+        }
+    }
+
     /**
      * This method is implemented for you. You should look at it to see examples of
      * how to find units and resources in Sepia.
@@ -281,24 +967,255 @@ public class AstarAgent extends Agent {
 
         MapLocation goalLoc = new MapLocation(townhallUnit.getXPosition(), townhallUnit.getYPosition(), null, 0);
 
-        MapLocation footmanLoc = null;
+        updateBlockerOverlay(state);
+
+        // no search can succeed if the footman and the townhall are in different components
+        int[] goalCells = adjacentGoalCells(goalLoc, occupancy);
+        int xExtent = occupancy.getXExtent();
+        if(!connectivity.reachesAny(cellIndex(startLoc.x, startLoc.y, xExtent), goalCells)) {
+            return null;
+        }
+
+        if(plannerMode == PlannerMode.SPACETIME) {
+            // a space-time path also depends on where the enemy footman is heading, which
+            // the cache key does not cover
+            int[] cells = planPath(startLoc, goalLoc);
+            markPathCells(cells);
+            return toPathStack(cells);
+        }
+
+        // reuse the last path planned between these cells around the same obstacles
+        int start = cellIndex(startLoc.x, startLoc.y, xExtent);
+        int goal = cellIndex(goalLoc.x, goalLoc.y, xExtent);
+        long version = occupancy.getVersion();
+        int planner = plannerKey();
+        int[] cells = pathCache.get(start, goal, version, planner);
+        if(cells == null) {
+            cells = planPath(startLoc, goalLoc);
+            pathCache.put(start, goal, version, planner, cells);
+        }
+        else if(PathCache.isUnreachable(cells)) {
+            cells = null;
+        }
+        markPathCells(cells);
+        return toPathStack(cells);
+    }
+
+    /**
+     * Switches to the path the worker finished, if there is one, and hands the worker a new
+     * search when the path needs replanning. The footman keeps walking the old path while
+     * the worker runs, so the search starts from the cell it steps into this turn. If the
+     * enemy footman stands in that cell the old path is dropped and the footman waits.
+     */
+    private void updateAsyncPath(State.StateView state, History.HistoryView history)
+    {
+        updateBlockerOverlay(state);
+
+        Unit.UnitView townhallUnit = state.getUnit(townhallID);
+        Unit.UnitView footmanUnit = state.getUnit(footmanID);
+        if(townhallUnit == null) {
+            return;
+        }
+        int xExtent = occupancy.getXExtent();
+        int footmanCell = cellIndex(footmanUnit.getXPosition(), footmanUnit.getYPosition(), xExtent);
+        MapLocation goalLoc = new MapLocation(townhallUnit.getXPosition(), townhallUnit.getYPosition(), null, 0);
+        int goal = cellIndex(goalLoc.x, goalLoc.y, xExtent);
+
+        AsyncPlanner.Result result = asyncPlanner.takeResult();
+        if(result != null) {
+            pathCache.put(result.start, result.goal, result.version, plannerKey(), result.cells);
+            takeAsyncPath(result.start, result.cells, footmanCell);
+        }
+
+        if(path != null && !shouldReplanPath(state, history, path)) {
+            return;
+        }
+
+        int start = footmanCell;
+        MapLocation step = null;
+        if(path != null) {
+            boolean arrived = nextLoc == null || cellIndex(nextLoc.x, nextLoc.y, xExtent) == footmanCell;
+            step = arrived ? (path.empty() ? null : path.peek()) : nextLoc;
+        }
+        if(step != null && occupancy.isBlocked(step.x, step.y)) {
+            path = null;
+            nextLoc = null;
+        }
+        else if(step != null) {
+            start = cellIndex(step.x, step.y, xExtent);
+        }
+
+        // a search in flight is only replaced if the enemy footman has moved onto its start,
+        // otherwise its path is taken when it finishes and checked again like any other
+        if(asyncPlanner.isBusy() && !occupancy.isBlocked(asyncPlanner.getPendingStart())) {
+            return;
+        }
+        if(!connectivity.reachesAny(start, adjacentGoalCells(goalLoc, occupancy))) {
+            path = null;
+            nextLoc = null;
+            return;
+        }
+        int[] cells = pathCache.get(start, goal, occupancy.getVersion(), plannerKey());
+        if(cells != null) {
+            takeAsyncPath(start, PathCache.isUnreachable(cells) ? null : cells, footmanCell);
+        }
+        else {
+            asyncPlanner.submit(occupancy.copy(), start, goal);
+        }
+    }
+
+    /**
+     * Switches to a path planned from the start cell. The footman may have walked on since
+     * the search began, so the path is picked up from where the footman stands on it, or
+     * joined with one step if the footman is next to the start. Otherwise it is dropped and
+     * the next replan starts from where the footman is.
+     */
+    private void takeAsyncPath(int start, int[] cells, int footmanCell)
+    {
+        if(cells != null && footmanCell != start) {
+            int xExtent = occupancy.getXExtent();
+            int dx = start % xExtent - footmanCell % xExtent;
+            int dy = start / xExtent - footmanCell / xExtent;
+            int walked = -1;
+            for(int i = 0; i < cells.length; i++) {
+                if(cells[i] == footmanCell) {
+                    walked = i;
+                }
+            }
+            if(walked != -1) {
+                cells = Arrays.copyOfRange(cells, walked + 1, cells.length);
+            }
+            else if(Math.abs(dx) <= 1 && Math.abs(dy) <= 1 && (diagonalMoves || dx == 0 || dy == 0)
+                    && occupancy.canStep(footmanCell % xExtent, footmanCell / xExtent, dx, dy)) {
+                int[] joined = new int[cells.length + 1];
+                joined[0] = start;
+                System.arraycopy(cells, 0, joined, 1, cells.length);
+                cells = joined;
+            }
+            else {
+                return;
+            }
+        }
+        replans++;
+        markPathCells(cells);
+        path = toPathStack(cells);
+        // the new path starts from where the footman stands now
+        nextLoc = null;
+    }
+
+    /**
+     * Gives the anytime planner this turn's budget and switches to the path it found, if any
+     */
+    private void improveAnytimePath(State.StateView state)
+    {
+        updateBlockerOverlay(state);
+
+        Unit.UnitView footmanUnit = state.getUnit(footmanID);
+        int[] cells = anytimePlanner.improve(footmanUnit.getXPosition(), footmanUnit.getYPosition(), planBudget);
+        if(cells != null) {
+            path = toPathStack(cells);
+            // the new path starts from where the footman stands now
+            nextLoc = null;
+        }
+    }
+
+    /**
+     * Moves the enemy footman overlay to its current cell
+     */
+    private void updateBlockerOverlay(State.StateView state)
+    {
         if(enemyFootmanID != -1) {
             Unit.UnitView enemyFootmanUnit = state.getUnit(enemyFootmanID);
-            footmanLoc = new MapLocation(enemyFootmanUnit.getXPosition(), enemyFootmanUnit.getYPosition(), null, 0);
+            MapLocation newBlockerLoc = new MapLocation(enemyFootmanUnit.getXPosition(), enemyFootmanUnit.getYPosition(), null, 0);
+            if(!newBlockerLoc.equals(blockerLoc)) {
+                if(blockerLoc != null) {
+                    occupancy.removeOverlay(blockerLoc.x, blockerLoc.y);
+                    blockerCellChanged(blockerLoc.x, blockerLoc.y);
+                }
+                occupancy.addOverlay(newBlockerLoc.x, newBlockerLoc.y);
+                blockerCellChanged(newBlockerLoc.x, newBlockerLoc.y);
+                blockerLoc = newBlockerLoc;
+            }
         }
+    }
 
-        // get resource locations
-        List<Integer> resourceIDs = state.getAllResourceIds();
-        Set<MapLocation> resourceLocations = new HashSet<MapLocation>();
-        for(Integer resourceID : resourceIDs)
-        {
-            ResourceNode.ResourceView resource = state.getResourceNode(resourceID);
+    /**
+     * Runs the selected planner and returns the path cells in the order they are walked
+     */
+    private int[] planPath(MapLocation startLoc, MapLocation goalLoc)
+    {
+        if(plannerMode == PlannerMode.DSTAR) {
+            // the planner keeps its search between calls and only repairs what the blocker changed
+            if(dstarPlanner == null) {
+                dstarPlanner = new DStarLitePlanner(occupancy, goalLoc.x, goalLoc.y, startLoc.x, startLoc.y);
+            }
+            return dstarPlanner.plan(startLoc.x, startLoc.y);
+        }
+        else if(plannerMode == PlannerMode.JPS) {
+            return jumpPointSearch.search(startLoc.x, startLoc.y, goalLoc.x, goalLoc.y);
+        }
+        else if(plannerMode == PlannerMode.HPA) {
+            // the cluster abstraction is built once per map and then kept up to date
+            if(hierarchicalPlanner == null) {
+                hierarchicalPlanner = new HierarchicalPlanner(occupancy, clusterSize, diagonalMoves);
+            }
+            return hierarchicalPlanner.plan(startLoc.x, startLoc.y, goalLoc.x, goalLoc.y);
+        }
+        else if(plannerMode == PlannerMode.SPACETIME) {
+            return spaceTimePlanner.plan(startLoc.x, startLoc.y, goalLoc.x, goalLoc.y, getLandmarkHeuristic(occupancy));
+        }
 
-            resourceLocations.add(new MapLocation(resource.getXPosition(), resource.getYPosition(), null, 0));
+        return AstarSearch(startLoc, goalLoc, occupancy);
+    }
+
+    /**
+     * Identifies the planner settings in the path cache, so a four connected path is never
+     * handed back when diagonal moves are on or the other way around, and a path planned
+     * with other terrain weights is never handed back either
+     */
+    private int plannerKey() {
+        int key = plannerMode.ordinal() * 2 + (diagonalMoves ? 1 : 0);
+        return terrainWeights == null ? key : 31 * key + Long.hashCode(terrainWeights.getFingerprint());
+    }
+
+    /**
+     * Returns the free cells around a target, any of which is close enough to attack it from
+     */
+    private int[] adjacentGoalCells(MapLocation target, OccupancyGrid occupancy) {
+        int xExtent = occupancy.getXExtent();
+        int[] cells = new int[8];
+        int count = 0;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if ((dx != 0 || dy != 0) && !occupancy.isBlocked(target.x + dx, target.y + dy)) {
+                    cells[count++] = cellIndex(target.x + dx, target.y + dy, xExtent);
+                }
+            }
         }
+        return Arrays.copyOf(cells, count);
+    }
 
-        return AstarSearch(startLoc, goalLoc, state.getXExtent(), state.getYExtent(), footmanLoc, resourceLocations);
+    /**
+     * Tells the incremental planners that the blocker overlay changed at a cell
+     */
+    private void blockerCellChanged(int x, int y) {
+        if(dstarPlanner != null) {
+            dstarPlanner.cellChanged(x, y);
+        }
+        if(hierarchicalPlanner != null) {
+            hierarchicalPlanner.cellChanged(x, y);
+        }
+        if(anytimePlanner != null) {
+            anytimePlanner.cellChanged(x, y);
+        }
+        if(flowField != null) {
+            flowField.cellChanged(x, y);
+        }
+        if(connectivity != null) {
+            connectivity.cellChanged(x, y);
+        }
     }
+
     /**
      * This is the method you will implement for the assignment. Your implementation
      * will use the A* algorithm to compute the optimum path from the start position to
@@ -325,7 +1242,7 @@ public class AstarAgent extends Agent {
      * yExtent would be 3 for this map with valid Y coordinates in the range of [0, 2]
      * y=0 is the top most row and y=2 is the bottom most row
      *
-     * resourceLocations would be {(0,1), (1,1), (2,1), (4,1)}
+     * occupancy would have the cells {(0,1), (1,1), (2,1), (4,1)} blocked
      *
      * The path would be
      *
@@ -335,139 +1252,188 @@ public class AstarAgent extends Agent {
      * (2,2)
      * (1,2)
      *
-     * Notice how the initial footman position and the townhall position are not included in the path stack
+     * Notice how the initial footman position and the townhall position are not included in the path
+     *
+     * The townhall cell itself is never entered, so the search does not aim for it. It aims for
+     * the set of free cells around it instead and stops at the first one it takes off the open
+     * list, with the heuristic being the distance to the closest cell of the set. If every cell
+     * around the townhall is blocked there is nothing to search for and it returns null at once.
+     *
+     * With diagonal moves turned on the children of a cell are all eight neighbours. A diagonal
+     * step takes one turn just like a cardinal one, so every step costs 1 and the Chebyshev
+     * heuristic stays exact on an empty map. Diagonals may not cut the corner of a blocked cell
+     * (see OccupancyGrid.canStep), so on the map above the step from (2,0) to (3,1) is not
+     * allowed and the path runs through (3,0) and (3,2) instead. On open maps diagonal moves
+     * take up to half as many turns as cardinal ones.
+     *
+     * Cells are ordered with the larger of the Chebyshev distance and the landmark bound from
+     * LandmarkHeuristic. The landmark tables know where the resources are, so on maps with long
+     * walls the search heads around them instead of filling the area in front of them.
+     *
+     * With towerPenalty set, stepping onto a cell within range of an enemy tower costs the
+     * penalty on top of the turn (see TerrainWeights), so the path goes around the towers
+     * unless that takes more extra turns than the penalty is worth. Every step still costs
+     * at least 1, so the heuristic stays consistent. Costs are small integers either way,
+     * so the open list is a BucketQueue with constant time pushes and pops.
      *
      * @param start Starting position of the footman
      * @param goal MapLocation of the townhall
-     * @param xExtent Width of the map
-     * @param yExtent Height of the map
-     * @param resourceLocations Set of positions occupied by resources
-     * @return Stack of positions with top of stack being first move in plan
+     * @param occupancy Bitmap of the cells occupied by resources and the enemy footman
+     * @return Path cells in the order they are walked, or null if the townhall cannot be reached
      * @author Previn Kumar
      */
-    private Stack<MapLocation> AstarSearch(MapLocation start, MapLocation goal, int xExtent, int yExtent, MapLocation enemyFootmanLoc, Set<MapLocation> resourceLocations)
+    private int[] AstarSearch(MapLocation start, MapLocation goal, OccupancyGrid occupancy)
     {
-        PriorityQueue<MapLocation> open_nodes = new PriorityQueue<MapLocation>(locationDistance(start, goal), new HeuristicDistanceComparator());
-        List<MapLocation> closed_nodes = new ArrayList<MapLocation>();
-        start.setGoal(goal);
-        start.setStart(null);
-        open_nodes.add(start);
-        
+        // per cell search state kept in flat arrays indexed by y * xExtent + x, reused between searches
+        int cellCount = occupancy.getXExtent() * occupancy.getYExtent();
+        if (searchBuffers == null || searchBuffers.getCellCount() != cellCount) {
+            searchBuffers = new SearchBuffers(cellCount);
+            openBuckets = new BucketQueue(cellCount);
+        }
+        return AstarSearch(start, goal, occupancy, searchBuffers, openBuckets,
+                terrainWeights, diagonalMoves, getLandmarkHeuristic(occupancy));
+    }
+
+    /**
+     * AstarSearch on the given buffers, which must be sized for the map, with the given
+     * settings instead of the agent's. A thread searching at the same time as the turn
+     * thread, like the AsyncPlanner worker, needs buffers of its own and settings that the
+     * turn thread does not change under it.
+     */
+    private int[] AstarSearch(MapLocation start, MapLocation goal, OccupancyGrid occupancy,
+                              SearchBuffers nodes, BucketQueue open_nodes,
+                              TerrainWeights weights, boolean diagonal, LandmarkHeuristic landmarks)
+    {
+        int xExtent = occupancy.getXExtent();
+
+        nodes.reset();
+        open_nodes.clear();
+
+        int startIndex = cellIndex(start.x, start.y, xExtent);
+        int goalIndex = cellIndex(goal.x, goal.y, xExtent);
+        int[] goalCells = adjacentGoalCells(goal, occupancy);
+        if (goalCells.length == 0) {
+            // the townhall is walled in, so no search can reach it
+            return null;
+        }
+        int[] goalRanges = landmarks == null ? null : landmarks.goalRanges(goalCells);
+        nodes.setCost(startIndex, 0, -1);
+        int startH = estimatedDistance(startIndex, goalCells, xExtent, landmarks, goalRanges);
+        open_nodes.insertOrDecrease(startIndex, startH);
+
+        int[] move_x = diagonal ? NEIGHBOUR_X : CARDINAL_X;
+        int[] move_y = diagonal ? NEIGHBOUR_Y : CARDINAL_Y;
+
+        int expanded = 0;
         while (!open_nodes.isEmpty()) {
-            MapLocation location = open_nodes.poll();
-            
-            // return path is location is goal
-            if (location.equals(goal)) {
-                return generateSolutionPath(location);
-            }
-            
-            Set<MapLocation> child_nodes = generateChildNodes(location, goal, xExtent, yExtent, resourceLocations);
-            for (MapLocation child : child_nodes) {
-                if (closed_nodes.contains(child)) {
-                    MapLocation node = closed_nodes.get(closed_nodes.indexOf(child));
-                    if (node.cost <= child.cost) {
-                        closed_nodes.add(child);
-                    }
-                    else {
-                        open_nodes.add(child);
-                    }
+            // a search on the AsyncPlanner worker gives up once a newer one replaces it
+            if ((++expanded & 1023) == 0 && Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            int location = open_nodes.poll();
+
+            // return path if location is next to the goal, every cell taken off the open list is free
+            if (OccupancyGrid.chebyshev(location % xExtent, location / xExtent, goal.x, goal.y) == 1) {
+                return generateSolutionPath(nodes, location);
+            }
+            nodes.close(location);
+
+            int x = location % xExtent;
+            int y = location / xExtent;
+            for (int i = 0; i < move_x.length; i++) {
+                // out of bounds cells count as blocked, and diagonals may not cut corners
+                if (!occupancy.canStep(x, y, move_x[i], move_y[i])) {
+                    continue;
                 }
-                else {
-                    open_nodes.add(child);
+                int child = cellIndex(x + move_x[i], y + move_y[i], xExtent);
+                // the heuristic is consistent so closed cells never need to be reopened
+                if (child == goalIndex || nodes.isClosed(child)) {
+                    continue;
+                }
+                int cost = nodes.getCost(location) + (weights == null ? 1 : weights.getWeight(child));
+                if (cost < nodes.getCost(child)) {
+                    nodes.setCost(child, cost, location);
+                    int h = estimatedDistance(child, goalCells, xExtent, landmarks, goalRanges);
+                    open_nodes.insertOrDecrease(child, cost + h);
                 }
             }
-            closed_nodes.add(location);
         }
-        
+
         // return null if there is no path to the townhall
         return null;
     }
-    
-    
-    /**
-     * A comparator class used to compare the values of potential child states
-     * @author Previn Kumar
-     */
-    private class HeuristicDistanceComparator implements Comparator<MapLocation> {
 
-        @Override
-        public int compare(MapLocation o1, MapLocation o2) {
-            return estimatedDistanceToGoal(o1) - estimatedDistanceToGoal(o2);
-        }
-    }
-    
-    /**
-     * Returns the total estimated cost of a solution path through a node
-     */
-    private int estimatedDistanceToGoal(MapLocation node) {
-        if (node == null || node.goal == null) {
-            System.err.println("Attempting to estimate distance of node with null value");
-        }
-        return node.cost + chebyshev(node, node.goal);
-    }
-    
     /**
-     * returns the total distance between two MapLocation objects
+     * Returns the flat array index of a map cell
      */
-    private int locationDistance(MapLocation start, MapLocation end) {
-        return Math.abs(end.x - start.x) + Math.abs(end.y - start.y);
+    private int cellIndex(int x, int y, int xExtent) {
+        return y * xExtent + x;
     }
-    
+
     /**
-     * Returns the Chebyshev distance estimation between two MapLocations
+     * Returns the landmark tables for the map, building them the first time a map and move
+     * set is seen, or null if landmarks are turned off
      */
-    private int chebyshev(MapLocation start, MapLocation end) {
-        int x_dist = Math.abs(end.x - start.x);
-        int y_dist = Math.abs(end.y - start.y);
-        
-        return (x_dist > y_dist)? x_dist : y_dist;
+    private LandmarkHeuristic getLandmarkHeuristic(OccupancyGrid occupancy) {
+        if(landmarkCount <= 0) {
+            return null;
+        }
+        LandmarkHeuristic landmarks = landmarkHeuristic;
+        if(landmarks == null || !landmarks.matches(occupancy, landmarkCount, diagonalMoves)) {
+            landmarks = new LandmarkHeuristic(occupancy, landmarkCount, diagonalMoves);
+            landmarkHeuristic = landmarks;
+        }
+        return landmarks;
     }
-    
+
     /**
-     * Generates the successor nodes of a given MapLocation
-     * Assumes the parent is a valid MapLocation
+     * Returns the larger of the Chebyshev distance to the closest goal cell and the landmark bound
+     * on the distance to the goal cells. Both are lower bounds, and the landmark bound also accounts
+     * for the resources in the way.
      */
-    private Set<MapLocation> generateChildNodes(MapLocation parent, MapLocation goal, int xExtent, int yExtent, Set<MapLocation> resources) {
-        Set<MapLocation> child_nodes = new HashSet<MapLocation>();
-        if (parent.x - 1 >= 0 && validateNonResourceNode(parent.x - 1, parent.y, resources)) {
-            child_nodes.add(new MapLocation(parent.x - 1, parent.y, parent.cost + 1, parent, goal));
+    private int estimatedDistance(int cell, int[] goalCells, int xExtent, LandmarkHeuristic landmarks, int[] goalRanges) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        int h = Integer.MAX_VALUE;
+        for (int goalCell : goalCells) {
+            h = Math.min(h, OccupancyGrid.chebyshev(x, y, goalCell % xExtent, goalCell / xExtent));
         }
-        if (parent.x + 1 < xExtent && validateNonResourceNode(parent.x + 1, parent.y, resources)) {
-            child_nodes.add(new MapLocation(parent.x + 1, parent.y, parent.cost + 1, parent, goal));
+        if(landmarks != null) {
+            h = Math.max(h, landmarks.estimate(cell, goalRanges));
         }
-        if (parent.y - 1 >= 0 && validateNonResourceNode(parent.x, parent.y - 1, resources)) {
-            child_nodes.add(new MapLocation(parent.x, parent.y - 1, parent.cost + 1, parent, goal));
-        }
-        if (parent.y + 1 < yExtent && validateNonResourceNode(parent.x, parent.y + 1, resources)) {
-            child_nodes.add(new MapLocation(parent.x, parent.y + 1, parent.cost + 1, parent, goal));
-        }
-        return child_nodes;
+        return h;
     }
-    
+
     /**
-     * Validates that a potential MapLocation is not occupied by a resource node
+     * Follows the parent indices back from the goal cell that was reached and returns the path
+     * cells in the order they are walked, ending on that cell and leaving out the start cell
      */
-    private boolean validateNonResourceNode(int x, int y, Set<MapLocation> resources) {
-        MapLocation potential_loc = new MapLocation(x, y, null, 1);
-        boolean available = true;
-        for (MapLocation resource : resources) {
-            available = available && !(potential_loc.equals(resource));
+    private int[] generateSolutionPath(SearchBuffers nodes, int goalCell) {
+        // with terrain weights the cost is no longer the number of steps, so count them first
+        int length = 0;
+        for (int cell = goalCell; nodes.getParent(cell) != -1; cell = nodes.getParent(cell)) {
+            length++;
         }
-        return available;
+        int[] cells = new int[length];
+        int child = goalCell;
+        for (int i = cells.length - 1; i >= 0; i--) {
+            cells[i] = child;
+            child = nodes.getParent(child);
+        }
+        return cells;
     }
-    
+
     /**
-     * Creates a Stack of MapLocation objects from child to first parent with a null reference to parent
+     * Converts path cell indices, in the order they are walked, into a Stack with the first move on top
      */
-    private Stack<MapLocation> generateSolutionPath(MapLocation deepest_child) {
-        Stack<MapLocation> solution_path = new Stack<MapLocation>();
-        MapLocation child = null;
-        if (deepest_child != null && deepest_child.start != null) {
-            child = deepest_child.start;
+    private Stack<MapLocation> toPathStack(int[] cells) {
+        if (cells == null) {
+            return null;
         }
-        while (child != null && child.start != null) {
-            solution_path.add(child);
-            child = child.start;
+        int xExtent = occupancy.getXExtent();
+        Stack<MapLocation> solution_path = new Stack<MapLocation>();
+        for (int i = cells.length - 1; i >= 0; i--) {
+            solution_path.add(new MapLocation(cells[i] % xExtent, cells[i] / xExtent, null, 0));
         }
         return solution_path;
     }
@@ -0,0 +1,155 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs path searches on a worker thread, so a turn never waits for one to finish.
+ *
+ * Every search gets its own copy of the occupancy grid, so the worker never sees the
+ * overlay change under it while the agent keeps moving the enemy footman around. The
+ * agent takes the finished path on a later turn and keeps walking its old path until
+ * then. Only the newest search counts: submitting one cancels the search in flight,
+ * which gives up at its next interrupt check, and a result from a search that has been
+ * replaced is never handed out.
+ */
+class AsyncPlanner {
+
+    /**
+     * A search the worker can run. It returns the path cells in the order they are walked,
+     * or null if there is no path, and should check the thread's interrupt flag now and
+     * then so a cancelled search stops early.
+     */
+    interface Search {
+        int[] search(OccupancyGrid grid, int start, int goal);
+    }
+
+    /**
+     * A finished search and what it was run on
+     */
+    static class Result {
+        final int number;
+        final int start;
+        final int goal;
+        final long version;
+        final int[] cells;
+
+        Result(int number, int start, int goal, long version, int[] cells)
+        {
+            this.number = number;
+            this.start = start;
+            this.goal = goal;
+            this.version = version;
+            this.cells = cells;
+        }
+    }
+
+    private final Search search;
+    private final ExecutorService worker;
+
+    private Future<?> pending;
+    private int pendingStart;
+    private volatile int latest; // number of the newest search submitted
+    private volatile Result finished;
+
+    private int submitted = 0;
+    private int cancelled = 0;
+
+    public AsyncPlanner(Search search)
+    {
+        this.search = search;
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AsyncPlanner");
+                // a search left running must not keep the game from exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts a search on the worker, cancelling the one in flight if there is one. The grid
+     * must be a copy the caller does not change afterwards.
+     */
+    public void submit(final OccupancyGrid grid, final int start, final int goal) {
+        if (isBusy()) {
+            pending.cancel(true);
+            cancelled++;
+        }
+        final int number = latest + 1;
+        latest = number;
+        finished = null;
+        pendingStart = start;
+        pending = worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                int[] cells;
+                try {
+                    cells = search.search(grid, start, goal);
+                }
+                catch (RuntimeException e) {
+                    // the agent asks again on its next replan
+                    System.err.println("Path search on the worker failed: " + e);
+                    return;
+                }
+                if (!Thread.currentThread().isInterrupted() && number == latest) {
+                    finished = new Result(number, start, goal, grid.getVersion(), cells);
+                }
+            }
+        });
+        submitted++;
+    }
+
+    /**
+     * Returns true if a search is still running or waiting for the worker
+     */
+    public boolean isBusy() {
+        return pending != null && !pending.isDone();
+    }
+
+    /**
+     * Returns the start cell of the newest search
+     */
+    public int getPendingStart() {
+        return pendingStart;
+    }
+
+    /**
+     * Returns the result of the newest search once, or null if it has not finished
+     */
+    public Result takeResult() {
+        Result result = finished;
+        if (result == null || result.number != latest) {
+            return null;
+        }
+        finished = null;
+        return result;
+    }
+
+    public int getSubmitted() {
+        return submitted;
+    }
+
+    public int getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels the search in flight and stops the worker thread, waiting for a cancelled
+     * search to reach its next interrupt check so it is done with everything it was using
+     */
+    public void shutdown() {
+        worker.shutdownNow();
+        try {
+            if (!worker.awaitTermination(1, TimeUnit.SECONDS)) {
+                System.err.println("AsyncPlanner worker did not stop");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.Arrays;
+
+/**
+ * Bucket queue (Dial's algorithm) over grid cell indices for the A* open list.
+ *
+ * Path costs are small integers, so instead of keeping the queued cells in heap order
+ * there is one bucket for every f value, and a cell is pushed by linking it into the
+ * bucket for its f. The buckets are doubly linked lists threaded through flat arrays,
+ * so lowering the f of a queued cell unlinks it from one bucket and links it into
+ * another in constant time. With a consistent heuristic A* never queues a cell below
+ * the f it last took off, so the lowest bucket that can hold anything only moves up
+ * and poll scans every bucket at most once over a whole search.
+ *
+ * Within a bucket the cell queued last comes out first. That is the cell found deepest
+ * into the search, which on equal f usually has the lower h, so it breaks ties toward
+ * the goal like the h tie break of IndexedMinHeap.
+ */
+class BucketQueue {
+
+    private static final int NONE = -1;
+
+    private final int[] next;
+    private final int[] previous;
+    private final int[] fScore; // NONE when not queued
+    private int[] head = new int[64]; // first cell of every bucket
+    private int lowest = Integer.MAX_VALUE; // no bucket below this one holds a cell
+    private int highest = -1; // no bucket above this one holds a cell
+    private int size;
+
+    public BucketQueue(int capacity)
+    {
+        next = new int[capacity];
+        previous = new int[capacity];
+        fScore = new int[capacity];
+        Arrays.fill(fScore, NONE);
+        Arrays.fill(head, NONE);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int cell) {
+        return fScore[cell] != NONE;
+    }
+
+    /**
+     * Adds a cell to the bucket for f, or moves it there if it is already queued with a
+     * higher f value (f >= 0)
+     */
+    public void insertOrDecrease(int cell, int f) {
+        int old = fScore[cell];
+        if (old != NONE) {
+            if (f >= old) {
+                return;
+            }
+            unlink(cell, old);
+            size--;
+        }
+        if (f >= head.length) {
+            int length = head.length;
+            head = Arrays.copyOf(head, Math.max(2 * length, f + 1));
+            Arrays.fill(head, length, head.length, NONE);
+        }
+        fScore[cell] = f;
+        previous[cell] = NONE;
+        next[cell] = head[f];
+        if (head[f] != NONE) {
+            previous[head[f]] = cell;
+        }
+        head[f] = cell;
+        size++;
+        lowest = Math.min(lowest, f);
+        highest = Math.max(highest, f);
+    }
+
+    /**
+     * Removes and returns the cell queued last in the lowest bucket
+     */
+    public int poll() {
+        while (head[lowest] == NONE) {
+            lowest++;
+        }
+        int top = head[lowest];
+        unlink(top, lowest);
+        size--;
+        return top;
+    }
+
+    /**
+     * Empties the queue, only touching the buckets between the lowest and the highest f used
+     */
+    public void clear() {
+        for (int f = lowest; f <= highest; f++) {
+            for (int cell = head[f]; cell != NONE; cell = next[cell]) {
+                fScore[cell] = NONE;
+            }
+            head[f] = NONE;
+        }
+        lowest = Integer.MAX_VALUE;
+        highest = -1;
+        size = 0;
+    }
+
+    private void unlink(int cell, int f) {
+        if (previous[cell] == NONE) {
+            head[f] = next[cell];
+        }
+        else {
+            next[previous[cell]] = next[cell];
+        }
+        if (next[cell] != NONE) {
+            previous[next[cell]] = previous[cell];
+        }
+        fScore[cell] = NONE;
+    }
+}
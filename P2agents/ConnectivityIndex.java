@@ -0,0 +1,293 @@
+import java.util.Arrays;
+
+/**
+ * Connected component labels of the free cells of an OccupancyGrid.
+ *
+ * Every free cell carries the label of its component, so whether one cell can be reached
+ * from another is a single comparison. A diagonal step needs both cells beside it to be
+ * free, so the eight connected components are the same as the four connected ones and
+ * one set of labels serves both move sets.
+ *
+ * The labels follow the overlay as the enemy footman moves. Freeing a cell joins the
+ * components around it by relabelling the smaller ones. Blocking a cell can only split
+ * its own component, and only if its free neighbours are not already joined through the
+ * ring of cells around it, which on open ground they are. Otherwise a breadth first
+ * search runs from each side of the cell in turn, one cell at a time, until the sides
+ * have all met or one of them runs out of cells. A side that runs out is cut off and gets
+ * a new label, so the work is bounded by the smaller part of the split.
+ *
+ * One cell can be excluded, which counts as blocked for good. The townhall is a unit
+ * rather than a resource, so it is free in the grid, but paths cannot run through it.
+ */
+class ConnectivityIndex {
+
+    private static final int NONE = -1;
+
+    // offsets of the four cardinal neighbours, in the order they lie around a cell
+    private static final int[] SIDE_X = {0, 1, 0, -1};
+    private static final int[] SIDE_Y = {-1, 0, 1, 0};
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    private final int excluded;
+
+    private final int[] label; // NONE for blocked cells
+    private int[] componentSize = new int[16];
+    private int labelCount;
+
+    private final int[] queue;
+    private final int[] visited; // stamp of the split check that reached a cell
+    private final byte[] group; // which side of the split check reached a cell
+    private int stamp;
+
+    /**
+     * Labels every free cell of the grid, treating the excluded cell (or -1 for none) as blocked
+     */
+    public ConnectivityIndex(OccupancyGrid occupancy, int excludedCell)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        this.excluded = excludedCell;
+        int cellCount = xExtent * occupancy.getYExtent();
+        this.label = new int[cellCount];
+        this.queue = new int[cellCount];
+        this.visited = new int[cellCount];
+        this.group = new byte[cellCount];
+        Arrays.fill(label, NONE);
+        for (int cell = 0; cell < cellCount; cell++) {
+            if (label[cell] == NONE && isFree(cell)) {
+                int component = newLabel();
+                componentSize[component] = fill(cell, component);
+            }
+        }
+    }
+
+    /**
+     * Returns true if both cells are free and a path of free cells joins them
+     */
+    public boolean connected(int from, int to) {
+        return label[from] != NONE && label[from] == label[to];
+    }
+
+    /**
+     * Returns true if any of the given cells can be reached from the start
+     */
+    public boolean reachesAny(int start, int[] cells) {
+        for (int cell : cells) {
+            if (connected(start, cell)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells the index the occupancy of a cell has changed. The grid must already have
+     * been updated.
+     */
+    public void cellChanged(int x, int y) {
+        int cell = y * xExtent + x;
+        if (isFree(cell) && label[cell] == NONE) {
+            cellFreed(x, y, cell);
+        }
+        else if (!isFree(cell) && label[cell] != NONE) {
+            cellBlocked(x, y, cell);
+        }
+    }
+
+    private void cellFreed(int x, int y, int cell) {
+        // the cell joins the largest component around it and the others are relabelled into it
+        int largest = NONE;
+        for (int i = 0; i < SIDE_X.length; i++) {
+            int neighbour = freeNeighbour(x + SIDE_X[i], y + SIDE_Y[i]);
+            if (neighbour != NONE && (largest == NONE || componentSize[label[neighbour]] > componentSize[largest])) {
+                largest = label[neighbour];
+            }
+        }
+        if (largest == NONE) {
+            largest = newLabel();
+        }
+        label[cell] = largest;
+        componentSize[largest]++;
+        for (int i = 0; i < SIDE_X.length; i++) {
+            int neighbour = freeNeighbour(x + SIDE_X[i], y + SIDE_Y[i]);
+            if (neighbour != NONE && label[neighbour] != largest) {
+                componentSize[label[neighbour]] = 0;
+                componentSize[largest] += fill(neighbour, largest);
+            }
+        }
+    }
+
+    private void cellBlocked(int x, int y, int cell) {
+        int component = label[cell];
+        label[cell] = NONE;
+        componentSize[component]--;
+
+        // free sides of the cell, where two sides in a row are joined if the corner between them is free
+        int[] starts = new int[SIDE_X.length];
+        int groups = 0;
+        for (int i = 0; i < SIDE_X.length; i++) {
+            int neighbour = freeNeighbour(x + SIDE_X[i], y + SIDE_Y[i]);
+            if (neighbour == NONE) {
+                continue;
+            }
+            if (groups == 0 || !sidesJoined(x, y, i - 1, i)) {
+                starts[groups++] = neighbour;
+            }
+        }
+        // the last side and the first one are next to each other as well
+        if (groups > 1 && starts[0] == freeNeighbour(x + SIDE_X[0], y + SIDE_Y[0]) && sidesJoined(x, y, SIDE_X.length - 1, 0)) {
+            groups--;
+        }
+        if (groups > 1) {
+            split(component, starts, groups);
+        }
+    }
+
+    /**
+     * Returns true if two neighbouring sides of a cell are both free and so is the corner
+     * between them
+     */
+    private boolean sidesJoined(int x, int y, int before, int after) {
+        before = (before + SIDE_X.length) % SIDE_X.length;
+        return freeNeighbour(x + SIDE_X[before], y + SIDE_Y[before]) != NONE
+                && freeNeighbour(x + SIDE_X[after], y + SIDE_Y[after]) != NONE
+                && freeNeighbour(x + SIDE_X[before] + SIDE_X[after], y + SIDE_Y[before] + SIDE_Y[after]) != NONE;
+    }
+
+    /**
+     * Grows a breadth first search from the start cell of every group, one cell per group
+     * at a time. Searches that meet belong to the same part. When all of a part's searches
+     * have run out of cells while other parts are still going, that part was cut off and
+     * gets a new label. The last part left keeps the old label.
+     */
+    private void split(int component, int[] starts, int groups) {
+        stamp++;
+        int[] joinedTo = new int[groups];
+        int[][] cells = new int[groups][];
+        int[] head = new int[groups];
+        int[] tail = new int[groups];
+        boolean[] cutOff = new boolean[groups];
+        for (int g = 0; g < groups; g++) {
+            joinedTo[g] = g;
+            cells[g] = new int[16];
+            cells[g][tail[g]++] = starts[g];
+            visited[starts[g]] = stamp;
+            group[starts[g]] = (byte) g;
+        }
+
+        int parts = groups;
+        while (parts > 1) {
+            for (int g = 0; g < groups; g++) {
+                if (cutOff[g] || head[g] == tail[g]) {
+                    continue;
+                }
+                int current = cells[g][head[g]++];
+                int x = current % xExtent;
+                int y = current / xExtent;
+                for (int i = 0; i < SIDE_X.length; i++) {
+                    int neighbour = freeNeighbour(x + SIDE_X[i], y + SIDE_Y[i]);
+                    if (neighbour == NONE) {
+                        continue;
+                    }
+                    if (visited[neighbour] == stamp) {
+                        int mine = root(joinedTo, g);
+                        int theirs = root(joinedTo, group[neighbour]);
+                        if (mine != theirs) {
+                            joinedTo[theirs] = mine;
+                            parts--;
+                        }
+                        continue;
+                    }
+                    visited[neighbour] = stamp;
+                    group[neighbour] = (byte) g;
+                    if (tail[g] == cells[g].length) {
+                        cells[g] = Arrays.copyOf(cells[g], 2 * tail[g]);
+                    }
+                    cells[g][tail[g]++] = neighbour;
+                }
+            }
+            // a part whose searches have all run out is a component of its own
+            for (int g = 0; g < groups && parts > 1; g++) {
+                if (cutOff[g] || root(joinedTo, g) != g || !exhausted(joinedTo, g, head, tail, groups)) {
+                    continue;
+                }
+                int newComponent = newLabel();
+                for (int member = 0; member < groups; member++) {
+                    if (root(joinedTo, member) == g) {
+                        cutOff[member] = true;
+                        for (int k = 0; k < tail[member]; k++) {
+                            label[cells[member][k]] = newComponent;
+                        }
+                        componentSize[newComponent] += tail[member];
+                        componentSize[component] -= tail[member];
+                    }
+                }
+                parts--;
+            }
+        }
+    }
+
+    private boolean exhausted(int[] joinedTo, int root, int[] head, int[] tail, int groups) {
+        for (int g = 0; g < groups; g++) {
+            if (root(joinedTo, g) == root && head[g] < tail[g]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int root(int[] joinedTo, int g) {
+        while (joinedTo[g] != g) {
+            g = joinedTo[g];
+        }
+        return g;
+    }
+
+    /**
+     * Gives every cell reachable from the start that does not have the label yet the label,
+     * and returns how many there were
+     */
+    private int fill(int start, int newLabel) {
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        label[start] = newLabel;
+        while (head < tail) {
+            int cell = queue[head++];
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            for (int i = 0; i < SIDE_X.length; i++) {
+                int neighbour = freeNeighbour(x + SIDE_X[i], y + SIDE_Y[i]);
+                if (neighbour != NONE && label[neighbour] != newLabel) {
+                    label[neighbour] = newLabel;
+                    queue[tail++] = neighbour;
+                }
+            }
+        }
+        return tail;
+    }
+
+    private int newLabel() {
+        if (labelCount == componentSize.length) {
+            componentSize = Arrays.copyOf(componentSize, 2 * labelCount);
+        }
+        componentSize[labelCount] = 0;
+        return labelCount++;
+    }
+
+    /**
+     * Returns the index of a cell if it is in bounds and free, otherwise NONE
+     */
+    private int freeNeighbour(int x, int y) {
+        if (!occupancy.inBounds(x, y)) {
+            return NONE;
+        }
+        int cell = y * xExtent + x;
+        return isFree(cell) ? cell : NONE;
+    }
+
+    private boolean isFree(int cell) {
+        return cell != excluded && !occupancy.isBlocked(cell);
+    }
+}
@@ -0,0 +1,455 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Windowed Hierarchical Cooperative A* (WHCA*, Silver 2005) for a group of footmen.
+ *
+ * Units are planned one after the other in priority order. Each one runs a space-time
+ * A* over (cell, turn) states, where waiting in place is a move as well, and may not
+ * stand on a cell during a turn that another unit reserved for that turn, the turn
+ * before or the turn after. Moves are carried out one unit at a time, so this keeps
+ * units from swapping cells and from stepping into a cell that is still being left.
+ * Its own path is then written to the shared ReservationTable for the units after it.
+ *
+ * The search only looks window turns ahead. Past that it is guided by the true distance
+ * to the townhall around the resources, with every unit ignored, from a breadth first
+ * search that is done once per townhall cell. Leaving out the enemy footman keeps the
+ * estimate a lower bound and saves rebuilding it each time the enemy moves. Every unit
+ * replans once every half window, with the units spread over the turns of that interval,
+ * so only a share of them are searched on any turn. A unit that ended up somewhere other
+ * than its plan, for example because the enemy footman got in the way, replans straight
+ * away.
+ *
+ * Each unit claims its own free cell next to the townhall and parks there once its path
+ * reaches it. Parked units would wall off the rest of the ring if they took the cells
+ * where paths enter it, so the heuristic favours the cells furthest along the ring from
+ * an entrance and the ring fills up from the back. The townhall itself is not in the
+ * OccupancyGrid, so its cell is kept out of the searches here.
+ */
+class CooperativePlanner {
+
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    /**
+     * The window of cells a unit plans to stand on, starting at startTurn
+     */
+    private static class UnitPlan {
+        int startTurn;
+        int[] cells;
+        int parkedCell = -1;
+    }
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    private final int cellCount;
+    private final int window;
+    private final int replanInterval;
+    private final int[] moveX;
+    private final int[] moveY;
+    private final ReservationTable reservations;
+    private final Map<Integer, UnitPlan> plans = new HashMap<Integer, UnitPlan>();
+
+    // distance to the nearest goal cell around the resources, rebuilt when the target changes
+    private final int[] distance;
+    private final int[] queue;
+    private int distanceTarget = -1;
+
+    // steps along the ring of goal cells from the nearest one a path can enter by
+    private final int[] ringDepth;
+    private int maxRingDepth;
+
+    // areas of free cells that are connected without crossing the ring, and the largest one
+    private final int[] region;
+    private int outsideRegion;
+
+    // space-time search state indexed by turn * cellCount + cell, reset by bumping searchStamp
+    private final int[] seenStamp;
+    private final int[] parent;
+    private final IndexedMinHeap open;
+    private int searchStamp;
+
+    private int turn;
+    private int searches;
+
+    public CooperativePlanner(OccupancyGrid occupancy, int window, boolean diagonalMoves)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        this.cellCount = xExtent * occupancy.getYExtent();
+        this.window = Math.max(window, 2);
+        this.replanInterval = Math.max(this.window / 2, 1);
+        // the moves of the grid, then waiting in place as the (0, 0) offset copyOf pads them with
+        int[] stepX = OccupancyGrid.moveX(diagonalMoves);
+        int[] stepY = OccupancyGrid.moveY(diagonalMoves);
+        this.moveX = Arrays.copyOf(stepX, stepX.length + 1);
+        this.moveY = Arrays.copyOf(stepY, stepY.length + 1);
+        // two slots more than the window so a search can look at the turn after it
+        this.reservations = new ReservationTable(cellCount, this.window + 2);
+        this.distance = new int[cellCount];
+        this.queue = new int[cellCount];
+        this.ringDepth = new int[cellCount];
+        this.region = new int[cellCount];
+        this.seenStamp = new int[(this.window + 1) * cellCount];
+        this.parent = new int[(this.window + 1) * cellCount];
+        this.open = new IndexedMinHeap((this.window + 1) * cellCount);
+    }
+
+    /**
+     * Number of space-time searches run so far
+     */
+    public int getSearches() {
+        return searches;
+    }
+
+    /**
+     * Advances one turn and returns the cell each unit should be on next turn, which is
+     * its current cell when it should wait or attack.
+     *
+     * @param unitIDs Units to move, in priority order
+     * @param cells Current cell of each unit
+     * @param targetCell Cell of the townhall, the units finish on the free cells around it
+     */
+    public int[] step(int[] unitIDs, int[] cells, int targetCell) {
+        updateDistances(targetCell);
+        dropMissingUnits(unitIDs);
+
+        // units that are not where their plan says give it up before anyone searches,
+        // so the cells they really stand on are known to every search this turn
+        boolean[] offPlan = new boolean[unitIDs.length];
+        for (int i = 0; i < unitIDs.length; i++) {
+            UnitPlan plan = plans.get(unitIDs[i]);
+            if (plan == null || plannedCell(plan, turn) != cells[i]) {
+                if (plan != null) {
+                    release(unitIDs[i], plans.remove(unitIDs[i]));
+                }
+                reservations.reserve(cells[i], turn, unitIDs[i]);
+                offPlan[i] = true;
+            }
+        }
+        // and units whose plan steps onto one of those cells next turn have to replan too
+        boolean[] mustReplan = offPlan.clone();
+        for (int i = 0; i < unitIDs.length; i++) {
+            if (offPlan[i]) {
+                continue;
+            }
+            int next = plannedCell(plans.get(unitIDs[i]), turn + 1);
+            for (int j = 0; j < unitIDs.length; j++) {
+                mustReplan[i] |= offPlan[j] && cells[j] == next;
+            }
+        }
+
+        int[] nextCells = new int[unitIDs.length];
+        for (int i = 0; i < unitIDs.length; i++) {
+            UnitPlan plan = plans.get(unitIDs[i]);
+            // units replan in turn so the searches are spread over the interval
+            boolean scheduled = (turn + i) % replanInterval == 0;
+            if (mustReplan[i] || scheduled) {
+                plan = replan(unitIDs[i], cells[i], plan);
+            }
+            nextCells[i] = plannedCell(plan, turn + 1);
+        }
+        turn++;
+        return nextCells;
+    }
+
+    /**
+     * Returns the cell a plan stands on at a turn, -1 if the turn is outside of it
+     */
+    private int plannedCell(UnitPlan plan, int atTurn) {
+        int index = atTurn - plan.startTurn;
+        if (index < 0) {
+            return -1;
+        }
+        if (index >= plan.cells.length) {
+            return plan.parkedCell;
+        }
+        return plan.cells[index];
+    }
+
+    /**
+     * Releases everything held by units that are no longer in the list, e.g. ones that died
+     */
+    private void dropMissingUnits(int[] unitIDs) {
+        for (Integer unitID : new ArrayList<Integer>(plans.keySet())) {
+            boolean present = false;
+            for (int id : unitIDs) {
+                present |= id == unitID;
+            }
+            if (!present) {
+                release(unitID, plans.remove(unitID));
+            }
+        }
+    }
+
+    private void release(int unitID, UnitPlan plan) {
+        for (int i = 0; i < plan.cells.length; i++) {
+            reservations.release(plan.cells[i], plan.startTurn + i, unitID);
+        }
+        if (plan.parkedCell != -1) {
+            reservations.unpark(plan.parkedCell, unitID);
+        }
+    }
+
+    /**
+     * Runs the space-time search for one unit and reserves the result
+     */
+    private UnitPlan replan(int unitID, int startCell, UnitPlan oldPlan) {
+        if (oldPlan != null) {
+            release(unitID, oldPlan);
+        }
+        searches++;
+        UnitPlan plan = new UnitPlan();
+        plan.startTurn = turn;
+
+        int end = search(unitID, startCell);
+        if (end == -1) {
+            // boxed in by other units, so hold position wherever that is still allowed
+            plan.cells = new int[window + 1];
+            Arrays.fill(plan.cells, startCell);
+        }
+        else {
+            int endTurn = end / cellCount;
+            plan.cells = new int[endTurn + 1];
+            for (int state = end; state != -1; state = parent[state]) {
+                plan.cells[state / cellCount] = state % cellCount;
+            }
+            if (endTurn < window) {
+                plan.parkedCell = end % cellCount;
+                reservations.park(plan.parkedCell, turn + endTurn, unitID);
+            }
+        }
+        for (int i = 0; i < plan.cells.length; i++) {
+            if (!reservations.isReserved(plan.cells[i], turn + i, unitID)) {
+                reservations.reserve(plan.cells[i], turn + i, unitID);
+            }
+        }
+        plans.put(unitID, plan);
+        return plan;
+    }
+
+    /**
+     * Space-time A* from the start cell at the current turn. Returns the final state, either
+     * a goal cell the unit can park on or the best state at the end of the window, or -1
+     * if every move is blocked.
+     */
+    private int search(int unitID, int startCell) {
+        if (distance[startCell] >= INFINITY) {
+            return -1;
+        }
+        searchStamp++;
+        open.clear();
+        seenStamp[startCell] = searchStamp;
+        parent[startCell] = -1;
+        open.insertOrDecrease(startCell, heuristic(startCell), heuristic(startCell));
+
+        while (!open.isEmpty()) {
+            int state = open.poll();
+            int t = state / cellCount;
+            int cell = state % cellCount;
+            if (distance[cell] == 0 && reservations.isFreeFrom(cell, turn + t, turn + window + 1, unitID)
+                    && !canGoDeeper(cell, turn + t + 1, unitID)) {
+                return state;
+            }
+            if (t == window) {
+                return state;
+            }
+
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            for (int i = 0; i < moveX.length; i++) {
+                boolean wait = moveX[i] == 0 && moveY[i] == 0;
+                if (!wait && !occupancy.canStep(x, y, moveX[i], moveY[i])) {
+                    continue;
+                }
+                int child = cell + moveY[i] * xExtent + moveX[i];
+                // no entering a cell that is still being left, taken, or about to be entered
+                if (distance[child] >= INFINITY || reservations.isReserved(child, turn + t + 1, unitID)
+                        || reservations.isReserved(child, turn + t + 2, unitID)
+                        || (!wait && reservations.isReserved(child, turn + t, unitID))) {
+                    continue;
+                }
+                int childState = (t + 1) * cellCount + child;
+                if (seenStamp[childState] == searchStamp) {
+                    continue;
+                }
+                seenStamp[childState] = searchStamp;
+                parent[childState] = state;
+                int h = heuristic(child);
+                open.insertOrDecrease(childState, t + 1 + h, h);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if a goal cell has a neighbour further along the ring that is free to
+     * park on from the given turn, in which case a unit should move on rather than stop
+     */
+    private boolean canGoDeeper(int cell, int fromTurn, int unitID) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            if ((moveX[i] == 0 && moveY[i] == 0) || !occupancy.canStep(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int child = cell + moveY[i] * xExtent + moveX[i];
+            if (distance[child] == 0 && ringDepth[child] < INFINITY && ringDepth[child] > ringDepth[cell]
+                    && reservations.isFreeFrom(child, fromTurn, turn + window + 1, unitID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Distance to the goal cells plus the steps left to the back of the ring. It only
+     * drops by one per step, so it stays consistent.
+     */
+    private int heuristic(int cell) {
+        if (distance[cell] == 0) {
+            return maxRingDepth - Math.min(ringDepth[cell], maxRingDepth);
+        }
+        return distance[cell] + maxRingDepth;
+    }
+
+    /**
+     * Breadth first search outward from the free cells around the target over the same
+     * moves the units make. The target cell keeps an infinite distance so no path uses it.
+     */
+    private void updateDistances(int targetCell) {
+        if (targetCell == distanceTarget) {
+            return;
+        }
+        distanceTarget = targetCell;
+
+        Arrays.fill(distance, INFINITY);
+        int head = 0;
+        int tail = 0;
+        int targetX = targetCell % xExtent;
+        int targetY = targetCell / xExtent;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if ((dx != 0 || dy != 0) && !occupancy.isStaticBlocked(targetX + dx, targetY + dy)) {
+                    int goal = targetCell + dy * xExtent + dx;
+                    distance[goal] = 0;
+                    queue[tail++] = goal;
+                }
+            }
+        }
+        while (head < tail) {
+            int cell = queue[head++];
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            for (int i = 0; i < moveX.length; i++) {
+                if ((moveX[i] == 0 && moveY[i] == 0)
+                        || !occupancy.canStepStatic(x, y, moveX[i], moveY[i])) {
+                    continue;
+                }
+                int child = cell + moveY[i] * xExtent + moveX[i];
+                if (distance[child] == INFINITY && child != targetCell) {
+                    distance[child] = distance[cell] + 1;
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        labelRegions();
+
+        // ring depth is a second breadth first search inside the ring, from the goal cells
+        // that can be entered from the outside
+        head = 0;
+        tail = 0;
+        maxRingDepth = 0;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                int goal = targetCell + dy * xExtent + dx;
+                if ((dx == 0 && dy == 0) || occupancy.isStaticBlocked(targetX + dx, targetY + dy)) {
+                    continue;
+                }
+                ringDepth[goal] = INFINITY;
+                if (entersRing(goal)) {
+                    ringDepth[goal] = 0;
+                    queue[tail++] = goal;
+                }
+            }
+        }
+        while (head < tail) {
+            int cell = queue[head++];
+            maxRingDepth = Math.max(maxRingDepth, ringDepth[cell]);
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            for (int i = 0; i < moveX.length; i++) {
+                if ((moveX[i] == 0 && moveY[i] == 0)
+                        || !occupancy.canStepStatic(x, y, moveX[i], moveY[i])) {
+                    continue;
+                }
+                int child = cell + moveY[i] * xExtent + moveX[i];
+                if (distance[child] == 0 && ringDepth[child] == INFINITY) {
+                    ringDepth[child] = ringDepth[cell] + 1;
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the cells that can reach the ring into areas connected without crossing it.
+     * Cells that can only be reached through the ring form small pockets, so the largest
+     * area is taken as the outside that units come from.
+     */
+    private void labelRegions() {
+        Arrays.fill(region, -1);
+        int largest = 0;
+        outsideRegion = -1;
+        for (int seed = 0; seed < cellCount; seed++) {
+            if (region[seed] != -1 || distance[seed] == 0 || distance[seed] >= INFINITY) {
+                continue;
+            }
+            int head = 0;
+            int tail = 0;
+            region[seed] = seed;
+            queue[tail++] = seed;
+            while (head < tail) {
+                int cell = queue[head++];
+                int x = cell % xExtent;
+                int y = cell / xExtent;
+                for (int i = 0; i < moveX.length; i++) {
+                    if ((moveX[i] == 0 && moveY[i] == 0)
+                            || !occupancy.canStepStatic(x, y, moveX[i], moveY[i])) {
+                        continue;
+                    }
+                    int child = cell + moveY[i] * xExtent + moveX[i];
+                    if (region[child] == -1 && distance[child] > 0 && distance[child] < INFINITY) {
+                        region[child] = seed;
+                        queue[tail++] = child;
+                    }
+                }
+            }
+            if (tail > largest) {
+                largest = tail;
+                outsideRegion = seed;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a goal cell can be stepped onto from the outside area
+     */
+    private boolean entersRing(int goal) {
+        int x = goal % xExtent;
+        int y = goal / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            if ((moveX[i] == 0 && moveY[i] == 0)
+                    || !occupancy.canStepStatic(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int neighbour = goal + moveY[i] * xExtent + moveX[i];
+            if (region[neighbour] == outsideRegion && outsideRegion != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
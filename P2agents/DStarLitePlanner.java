@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+/**
+ * Incremental D* Lite planner toward a fixed goal cell.
+ *
+ * The search runs backward from the goal, so the g values it keeps are distances to
+ * the goal and stay valid while the footman walks along the path. When a cell changes
+ * occupancy (the enemy footman stepping in or out of it) only that cell and its
+ * neighbours are updated and the search repairs the affected part of the tree instead
+ * of starting over. Costs are read from the shared OccupancyGrid, so callers must
+ * update the grid first and then report the cells that changed.
+ *
+ * Based on the optimized D* Lite of Koenig and Likhachev.
+ */
+class DStarLitePlanner {
+
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    // offsets of the four cardinal neighbours
+    private final int[] moveX = OccupancyGrid.moveX(false);
+    private final int[] moveY = OccupancyGrid.moveY(false);
+    private final int goal;
+    private final int[] g;
+    private final int[] rhs;
+    private final IndexedMinHeap queue;
+
+    private int start;
+    private int lastStart;
+    private int keyModifier;
+
+    public DStarLitePlanner(OccupancyGrid occupancy, int goalX, int goalY, int startX, int startY)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        int cellCount = xExtent * occupancy.getYExtent();
+        this.goal = goalY * xExtent + goalX;
+        this.start = startY * xExtent + startX;
+        this.lastStart = start;
+        this.g = new int[cellCount];
+        this.rhs = new int[cellCount];
+        this.queue = new IndexedMinHeap(cellCount);
+        Arrays.fill(g, INFINITY);
+        Arrays.fill(rhs, INFINITY);
+
+        rhs[goal] = 0;
+        queue.update(goal, heuristic(goal), 0);
+    }
+
+    /**
+     * Tells the planner the occupancy of a cell has changed. The cell itself and every
+     * neighbour whose edge into it changed cost get their rhs values recomputed.
+     */
+    public void cellChanged(int x, int y) {
+        int cell = y * xExtent + x;
+        updateVertex(cell);
+        for (int i = 0; i < moveX.length; i++) {
+            int neighbourX = x + moveX[i];
+            int neighbourY = y + moveY[i];
+            if (occupancy.inBounds(neighbourX, neighbourY)) {
+                updateVertex(neighbourY * xExtent + neighbourX);
+            }
+        }
+    }
+
+    /**
+     * Repairs the search for the footman's current cell and returns the cell indices of the
+     * path in the order they are walked, or null if the goal cannot be reached.
+     *
+     * Like AstarAgent.AstarSearch the path leaves out both the start and the goal cell.
+     */
+    public int[] plan(int startX, int startY) {
+        start = startY * xExtent + startX;
+        // the heuristic is measured from the start, so old keys are lower bounds off by at most this much
+        keyModifier += occupancy.chebyshev(lastStart, start);
+        lastStart = start;
+
+        computeShortestPath();
+        if (rhs[start] >= INFINITY) {
+            return null;
+        }
+        return extractPath();
+    }
+
+    private void computeShortestPath() {
+        while (!queue.isEmpty()
+                && (compareKeys(queue.peekPriority(), queue.peekSecondary(), primaryKey(start), secondaryKey(start)) < 0
+                    || rhs[start] != g[start])) {
+            int cell = queue.peek();
+            int oldPrimary = queue.peekPriority();
+            int oldSecondary = queue.peekSecondary();
+            int newPrimary = primaryKey(cell);
+            int newSecondary = secondaryKey(cell);
+
+            if (compareKeys(oldPrimary, oldSecondary, newPrimary, newSecondary) < 0) {
+                // key went stale after the start moved
+                queue.update(cell, newPrimary, newSecondary);
+            }
+            else if (g[cell] > rhs[cell]) {
+                // locally overconsistent, settle it and relax its neighbours
+                g[cell] = rhs[cell];
+                queue.remove(cell);
+                updateNeighbours(cell);
+            }
+            else {
+                // locally underconsistent, raise it and let the neighbours find another route
+                g[cell] = INFINITY;
+                updateVertex(cell);
+                updateNeighbours(cell);
+            }
+        }
+    }
+
+    private void updateNeighbours(int cell) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            int neighbourX = x + moveX[i];
+            int neighbourY = y + moveY[i];
+            if (occupancy.inBounds(neighbourX, neighbourY)) {
+                updateVertex(neighbourY * xExtent + neighbourX);
+            }
+        }
+    }
+
+    private void updateVertex(int cell) {
+        if (cell != goal) {
+            rhs[cell] = bestSuccessorCost(cell);
+        }
+        if (g[cell] != rhs[cell]) {
+            queue.update(cell, primaryKey(cell), secondaryKey(cell));
+        }
+        else {
+            queue.remove(cell);
+        }
+    }
+
+    /**
+     * Returns the lowest edge cost plus g value over the neighbours of a cell
+     */
+    private int bestSuccessorCost(int cell) {
+        if (occupancy.isBlocked(cell)) {
+            return INFINITY;
+        }
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        int best = INFINITY;
+        for (int i = 0; i < moveX.length; i++) {
+            int neighbourX = x + moveX[i];
+            int neighbourY = y + moveY[i];
+            if (!occupancy.isBlocked(neighbourX, neighbourY)) {
+                int neighbour = neighbourY * xExtent + neighbourX;
+                if (g[neighbour] < INFINITY && g[neighbour] + 1 < best) {
+                    best = g[neighbour] + 1;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Walks down the g values from the start to the goal
+     */
+    private int[] extractPath() {
+        int[] cells = new int[rhs[start]];
+        int length = 0;
+        int cell = start;
+        while (cell != goal && length < cells.length) {
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            int next = -1;
+            int best = INFINITY;
+            for (int i = 0; i < moveX.length; i++) {
+                int neighbourX = x + moveX[i];
+                int neighbourY = y + moveY[i];
+                if (!occupancy.isBlocked(neighbourX, neighbourY)) {
+                    int neighbour = neighbourY * xExtent + neighbourX;
+                    if (g[neighbour] < best) {
+                        best = g[neighbour];
+                        next = neighbour;
+                    }
+                }
+            }
+            if (next == -1) {
+                return null;
+            }
+            cell = next;
+            cells[length++] = cell;
+        }
+        if (cell != goal) {
+            return null;
+        }
+        // the goal cell is the townhall itself, so it is not part of the path
+        return Arrays.copyOf(cells, length - 1);
+    }
+
+    private int primaryKey(int cell) {
+        return secondaryKey(cell) + heuristic(cell) + keyModifier;
+    }
+
+    private int secondaryKey(int cell) {
+        return Math.min(g[cell], rhs[cell]);
+    }
+
+    private int heuristic(int cell) {
+        return occupancy.chebyshev(start, cell);
+    }
+
+    private static int compareKeys(int primary1, int secondary1, int primary2, int secondary2) {
+        if (primary1 != primary2) {
+            return primary1 < primary2 ? -1 : 1;
+        }
+        return secondary1 < secondary2 ? -1 : (secondary1 == secondary2 ? 0 : 1);
+    }
+}
@@ -0,0 +1,272 @@
+import java.util.Arrays;
+
+/**
+ * Flow field (Dijkstra map) toward the cells around one target.
+ *
+ * A single reverse search from every free cell next to the target gives each cell its
+ * distance in moves and the neighbour to step to from there. Any number of units can then
+ * find their next move with one table lookup, so the cost of pathing no longer grows with
+ * the number of units, and all of them share one search instead of one each.
+ *
+ * The target cell itself is treated as blocked, since units walk up to it but never onto
+ * it. When an overlay cell changes the field is repaired rather than rebuilt. A cell that
+ * becomes blocked takes every cell whose flow ran through it down with it, except the
+ * ones that can switch to another neighbour just as close to the target. On open ground
+ * that is most of them. The cells that are lost are re-seeded from their neighbours that
+ * still have a distance and the change is propagated from there. A cell that opens up
+ * gets a distance from its neighbours and only spreads improvements outward. Both repairs
+ * only touch cells whose distance really changes.
+ */
+class FlowField {
+
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    private final int yExtent;
+    private final int target;
+    private final int[] moveX;
+    private final int[] moveY;
+
+    private final int[] distance;
+    private final int[] next; // cell to step to, -1 next to the target or when unreachable
+    private final IndexedMinHeap open;
+    private final int[] stack;
+
+    // cells whose distance was set, over the first build and every repair
+    private long updates;
+
+    /**
+     * Builds the field toward the free cells around (targetX, targetY)
+     */
+    public FlowField(OccupancyGrid occupancy, int targetX, int targetY, boolean diagonalMoves)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        this.yExtent = occupancy.getYExtent();
+        int cellCount = xExtent * yExtent;
+        this.target = targetY * xExtent + targetX;
+        this.moveX = OccupancyGrid.moveX(diagonalMoves);
+        this.moveY = OccupancyGrid.moveY(diagonalMoves);
+        this.distance = new int[cellCount];
+        this.next = new int[cellCount];
+        this.open = new IndexedMinHeap(cellCount);
+        this.stack = new int[cellCount];
+
+        Arrays.fill(distance, INFINITY);
+        Arrays.fill(next, -1);
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                int x = targetX + dx;
+                int y = targetY + dy;
+                if ((dx != 0 || dy != 0) && !occupancy.isBlocked(x, y)) {
+                    setDistance(y * xExtent + x, 0, -1);
+                }
+            }
+        }
+        propagate();
+    }
+
+    /**
+     * Returns the number of moves from a cell to a cell next to the target, or -1 if it
+     * cannot be reached
+     */
+    public int getDistance(int cell) {
+        return distance[cell] >= INFINITY ? -1 : distance[cell];
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Returns the cell to step to from a cell, or -1 if the cell is next to the target or
+     * cannot reach it. If the cell the field points at is taken, any other free neighbour
+     * that is also one move closer is used instead, and -1 is returned if there is none.
+     *
+     * @param taken Cells units should not step into this turn, indexed by cell
+     */
+    public int nextCell(int cell, boolean[] taken) {
+        int step = next[cell];
+        if (step == -1 || !taken[step]) {
+            return step;
+        }
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            if (!canStep(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int neighbour = cell + moveY[i] * xExtent + moveX[i];
+            if (!taken[neighbour] && distance[neighbour] == distance[cell] - 1) {
+                return neighbour;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tells the field the occupancy of a cell has changed. The grid must already have
+     * been updated.
+     */
+    public void cellChanged(int x, int y) {
+        int cell = y * xExtent + x;
+        if (occupancy.isBlocked(cell)) {
+            cellBlocked(x, y, cell);
+        }
+        else {
+            cellFreed(x, y, cell);
+        }
+        propagate();
+    }
+
+    private void cellBlocked(int x, int y, int cell) {
+        // the cell and every cell that now has no legal step to its next cell lose their flow
+        int count = 0;
+        if (distance[cell] < INFINITY) {
+            distance[cell] = INFINITY;
+            next[cell] = -1;
+            stack[count++] = cell;
+        }
+        for (int i = 0; i < moveX.length; i++) {
+            if (!occupancy.inBounds(x + moveX[i], y + moveY[i])) {
+                continue;
+            }
+            int neighbour = cell + moveY[i] * xExtent + moveX[i];
+            if (next[neighbour] != -1 && next[neighbour] != cell
+                    && !canStepTo(neighbour, next[neighbour]) && !repoint(neighbour)) {
+                distance[neighbour] = INFINITY;
+                next[neighbour] = -1;
+                stack[count++] = neighbour;
+            }
+        }
+        // so does everything whose flow ran through them, unless it has another way that
+        // is just as short
+        int invalidated = 0;
+        while (invalidated < count) {
+            int lost = stack[invalidated++];
+            int lostX = lost % xExtent;
+            int lostY = lost / xExtent;
+            for (int i = 0; i < moveX.length; i++) {
+                if (!occupancy.inBounds(lostX + moveX[i], lostY + moveY[i])) {
+                    continue;
+                }
+                int up = lost + moveY[i] * xExtent + moveX[i];
+                if (next[up] == lost && !repoint(up)) {
+                    distance[up] = INFINITY;
+                    next[up] = -1;
+                    stack[count++] = up;
+                }
+            }
+        }
+        // each lost cell starts again from its best neighbour that kept its distance
+        for (int i = 0; i < count; i++) {
+            if (stack[i] != cell) {
+                relaxFromNeighbours(stack[i]);
+            }
+        }
+    }
+
+    /**
+     * Points a cell at another neighbour with the same distance to go, if it has one.
+     * If that neighbour loses its flow later on, the cell is found again through it.
+     */
+    private boolean repoint(int cell) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            if (!canStep(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int neighbour = cell + moveY[i] * xExtent + moveX[i];
+            if (neighbour != next[cell] && distance[neighbour] == distance[cell] - 1) {
+                next[cell] = neighbour;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void cellFreed(int x, int y, int cell) {
+        if (isTargetNeighbour(x, y)) {
+            setDistance(cell, 0, -1);
+        }
+        else {
+            relaxFromNeighbours(cell);
+        }
+        // with diagonal moves the cell may also have opened a corner between two neighbours
+        for (int i = 0; i < moveX.length; i++) {
+            if (occupancy.inBounds(x + moveX[i], y + moveY[i])) {
+                int neighbour = cell + moveY[i] * xExtent + moveX[i];
+                if (distance[neighbour] < INFINITY) {
+                    open.update(neighbour, distance[neighbour], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives a cell the distance of its closest neighbour plus one, if that is an improvement
+     */
+    private void relaxFromNeighbours(int cell) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        for (int i = 0; i < moveX.length; i++) {
+            if (!canStep(x, y, moveX[i], moveY[i])) {
+                continue;
+            }
+            int neighbour = cell + moveY[i] * xExtent + moveX[i];
+            if (distance[neighbour] + 1 < distance[cell]) {
+                setDistance(cell, distance[neighbour] + 1, neighbour);
+            }
+        }
+    }
+
+    /**
+     * Spreads the distances on the open list outward until nothing improves any more
+     */
+    private void propagate() {
+        while (!open.isEmpty()) {
+            int cell = open.poll();
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            for (int i = 0; i < moveX.length; i++) {
+                // moves are symmetric, so a step from the cell is also a step back to it
+                if (!canStep(x, y, moveX[i], moveY[i])) {
+                    continue;
+                }
+                int neighbour = cell + moveY[i] * xExtent + moveX[i];
+                if (distance[cell] + 1 < distance[neighbour]) {
+                    setDistance(neighbour, distance[cell] + 1, cell);
+                }
+            }
+        }
+    }
+
+    private void setDistance(int cell, int cellDistance, int nextCell) {
+        distance[cell] = cellDistance;
+        next[cell] = nextCell;
+        open.update(cell, cellDistance, 0);
+        updates++;
+    }
+
+    /**
+     * Same as OccupancyGrid.canStep, with the target cell counted as blocked too
+     */
+    private boolean canStep(int x, int y, int dx, int dy) {
+        if (!occupancy.canStep(x, y, dx, dy) || (y + dy) * xExtent + x + dx == target) {
+            return false;
+        }
+        return dx == 0 || dy == 0 || (y * xExtent + x + dx != target && (y + dy) * xExtent + x != target);
+    }
+
+    private boolean canStepTo(int cell, int to) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        return canStep(x, y, to % xExtent - x, to / xExtent - y);
+    }
+
+    private boolean isTargetNeighbour(int x, int y) {
+        return OccupancyGrid.chebyshev(x, y, target % xExtent, target / xExtent) == 1;
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+
+/**
+ * Binary min heap over grid cell indices used by the A* open list.
+ *
+ * Each cell can be in the heap at most once. Its slot is tracked in a flat array,
+ * so lowering the priority of a queued cell (decrease-key) and membership checks
+ * are constant time lookups instead of duplicate inserts. Ties on f are broken
+ * in favour of the lower h value so the search pushes toward the goal.
+ */
+class IndexedMinHeap {
+
+    private final int[] heap;
+    private final int[] slot; // slot of each cell in the heap, -1 when not queued
+    private final int[] fScore;
+    private final int[] hScore;
+    private int size;
+
+    public IndexedMinHeap(int capacity)
+    {
+        heap = new int[capacity];
+        slot = new int[capacity];
+        fScore = new int[capacity];
+        hScore = new int[capacity];
+        Arrays.fill(slot, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int cell) {
+        return slot[cell] != -1;
+    }
+
+    /**
+     * Returns the cell at a position of the heap array, for walking over every queued
+     * cell in no particular order (0 <= index < size)
+     */
+    public int cellAt(int index) {
+        return heap[index];
+    }
+
+    /**
+     * Returns the cell on top of the heap without removing it
+     */
+    public int peek() {
+        return heap[0];
+    }
+
+    /**
+     * Returns the f value of the cell on top of the heap
+     */
+    public int peekPriority() {
+        return fScore[heap[0]];
+    }
+
+    /**
+     * Returns the tie breaking value of the cell on top of the heap
+     */
+    public int peekSecondary() {
+        return hScore[heap[0]];
+    }
+
+    /**
+     * Adds a cell to the heap or lowers its priority if it is already queued
+     * with a higher f value
+     */
+    public void insertOrDecrease(int cell, int f, int h) {
+        int index = slot[cell];
+        if (index == -1) {
+            fScore[cell] = f;
+            hScore[cell] = h;
+            heap[size] = cell;
+            slot[cell] = size;
+            siftUp(size++);
+        }
+        else if (f < fScore[cell] || (f == fScore[cell] && h < hScore[cell])) {
+            fScore[cell] = f;
+            hScore[cell] = h;
+            siftUp(index);
+        }
+    }
+
+    /**
+     * Sets the priority of a cell, inserting it if needed. Unlike insertOrDecrease
+     * the priority may also go up, which incremental planners need.
+     */
+    public void update(int cell, int f, int h) {
+        int index = slot[cell];
+        if (index == -1) {
+            insertOrDecrease(cell, f, h);
+            return;
+        }
+        fScore[cell] = f;
+        hScore[cell] = h;
+        siftUp(index);
+        siftDown(slot[cell]);
+    }
+
+    /**
+     * Removes a cell from the heap if it is queued
+     */
+    public void remove(int cell) {
+        int index = slot[cell];
+        if (index == -1) {
+            return;
+        }
+        slot[cell] = -1;
+        size--;
+        if (index < size) {
+            int moved = heap[size];
+            heap[index] = moved;
+            slot[moved] = index;
+            siftUp(index);
+            siftDown(slot[moved]);
+        }
+    }
+
+    /**
+     * Removes and returns the cell with the lowest f value
+     */
+    public int poll() {
+        int top = heap[0];
+        slot[top] = -1;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            slot[heap[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /**
+     * Empties the heap, only touching the cells that are still queued
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            slot[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private boolean less(int a, int b) {
+        return fScore[a] < fScore[b] || (fScore[a] == fScore[b] && hScore[a] < hScore[b]);
+    }
+
+    private void siftUp(int index) {
+        int cell = heap[index];
+        while (index > 0) {
+            int parentIndex = (index - 1) >> 1;
+            int parent = heap[parentIndex];
+            if (!less(cell, parent)) {
+                break;
+            }
+            heap[index] = parent;
+            slot[parent] = index;
+            index = parentIndex;
+        }
+        heap[index] = cell;
+        slot[cell] = index;
+    }
+
+    private void siftDown(int index) {
+        int cell = heap[index];
+        int half = size >> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            int right = child + 1;
+            if (right < size && less(heap[right], heap[child])) {
+                child = right;
+            }
+            if (!less(heap[child], cell)) {
+                break;
+            }
+            heap[index] = heap[child];
+            slot[heap[index]] = index;
+            index = child;
+        }
+        heap[index] = cell;
+        slot[cell] = index;
+    }
+}
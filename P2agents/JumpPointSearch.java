@@ -0,0 +1,234 @@
+/**
+ * Jump Point Search over the eight connected grid.
+ *
+ * Every step, straight or diagonal, costs one turn in SEPIA, so the map is a uniform
+ * cost grid with lots of equally short paths. Instead of pushing every neighbour onto
+ * the open list, JPS scans along straight and diagonal lines and only stops at jump
+ * points, cells where a different route could become shorter because of an obstacle.
+ * Diagonal moves may not cut the corner of a blocked cell (see OccupancyGrid.canStep),
+ * which uses the pruning rules of the no corner cutting variant of Harabor and Grastien.
+ */
+class JumpPointSearch {
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    private final SearchBuffers nodes;
+    private final int[] successors = new int[8];
+
+    private int goalX;
+    private int goalY;
+
+    public JumpPointSearch(OccupancyGrid occupancy)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        this.nodes = new SearchBuffers(xExtent * occupancy.getYExtent());
+    }
+
+    /**
+     * Returns the cell indices of the path in the order they are walked, leaving out the
+     * start and the goal cell, or null if there is no path.
+     */
+    public int[] search(int startX, int startY, int goalX, int goalY) {
+        this.goalX = goalX;
+        this.goalY = goalY;
+        nodes.reset();
+        IndexedMinHeap open_nodes = nodes.getOpen();
+
+        int start = startY * xExtent + startX;
+        int goal = goalY * xExtent + goalX;
+        nodes.setCost(start, 0, -1);
+        open_nodes.insertOrDecrease(start, heuristic(startX, startY), heuristic(startX, startY));
+
+        while (!open_nodes.isEmpty()) {
+            int location = open_nodes.poll();
+            if (location == goal) {
+                return expandPath(goal);
+            }
+            nodes.close(location);
+
+            int x = location % xExtent;
+            int y = location / xExtent;
+            int count = findSuccessors(x, y, nodes.getParent(location), successors);
+            for (int i = 0; i < count; i++) {
+                int jumpPoint = successors[i];
+                if (nodes.isClosed(jumpPoint)) {
+                    continue;
+                }
+                int jumpX = jumpPoint % xExtent;
+                int jumpY = jumpPoint / xExtent;
+                // jump points always lie on a straight or diagonal line, so the distance is the step count
+                int cost = nodes.getCost(location) + OccupancyGrid.chebyshev(x, y, jumpX, jumpY);
+                if (cost < nodes.getCost(jumpPoint)) {
+                    nodes.setCost(jumpPoint, cost, location);
+                    int h = heuristic(jumpX, jumpY);
+                    open_nodes.insertOrDecrease(jumpPoint, cost + h, h);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fills successors with the jump points reachable from (x, y) and returns how many were found
+     */
+    private int findSuccessors(int x, int y, int parentCell, int[] successors) {
+        int count = 0;
+        if (parentCell == -1) {
+            // the start cell has no direction yet, so every neighbour is natural
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    if ((dx != 0 || dy != 0) && occupancy.canStep(x, y, dx, dy)) {
+                        count = addJump(x, y, dx, dy, successors, count);
+                    }
+                }
+            }
+            return count;
+        }
+
+        int dx = Integer.signum(x - parentCell % xExtent);
+        int dy = Integer.signum(y - parentCell / xExtent);
+        if (dx != 0 && dy != 0) {
+            boolean horizontal = !occupancy.isBlocked(x + dx, y);
+            boolean vertical = !occupancy.isBlocked(x, y + dy);
+            if (vertical) {
+                count = addJump(x, y, 0, dy, successors, count);
+            }
+            if (horizontal) {
+                count = addJump(x, y, dx, 0, successors, count);
+            }
+            if (horizontal && vertical && !occupancy.isBlocked(x + dx, y + dy)) {
+                count = addJump(x, y, dx, dy, successors, count);
+            }
+        }
+        else if (dx != 0) {
+            boolean ahead = !occupancy.isBlocked(x + dx, y);
+            boolean up = !occupancy.isBlocked(x, y - 1);
+            boolean down = !occupancy.isBlocked(x, y + 1);
+            if (ahead) {
+                count = addJump(x, y, dx, 0, successors, count);
+                if (up && occupancy.canStep(x, y, dx, -1)) {
+                    count = addJump(x, y, dx, -1, successors, count);
+                }
+                if (down && occupancy.canStep(x, y, dx, 1)) {
+                    count = addJump(x, y, dx, 1, successors, count);
+                }
+            }
+            if (up) {
+                count = addJump(x, y, 0, -1, successors, count);
+            }
+            if (down) {
+                count = addJump(x, y, 0, 1, successors, count);
+            }
+        }
+        else {
+            boolean ahead = !occupancy.isBlocked(x, y + dy);
+            boolean left = !occupancy.isBlocked(x - 1, y);
+            boolean right = !occupancy.isBlocked(x + 1, y);
+            if (ahead) {
+                count = addJump(x, y, 0, dy, successors, count);
+                if (left && occupancy.canStep(x, y, -1, dy)) {
+                    count = addJump(x, y, -1, dy, successors, count);
+                }
+                if (right && occupancy.canStep(x, y, 1, dy)) {
+                    count = addJump(x, y, 1, dy, successors, count);
+                }
+            }
+            if (left) {
+                count = addJump(x, y, -1, 0, successors, count);
+            }
+            if (right) {
+                count = addJump(x, y, 1, 0, successors, count);
+            }
+        }
+        return count;
+    }
+
+    private int addJump(int x, int y, int dx, int dy, int[] successors, int count) {
+        int jumpPoint = jump(x, y, dx, dy);
+        if (jumpPoint != -1) {
+            successors[count++] = jumpPoint;
+        }
+        return count;
+    }
+
+    /**
+     * Moves from (x, y) in direction (dx, dy) until it finds a jump point, and returns its
+     * cell index or -1 if the line runs into an obstacle first
+     */
+    private int jump(int x, int y, int dx, int dy) {
+        if (dx != 0 && dy != 0) {
+            while (occupancy.canStep(x, y, dx, dy)) {
+                x += dx;
+                y += dy;
+                if (x == goalX && y == goalY) {
+                    return y * xExtent + x;
+                }
+                // a diagonal cell is a jump point if either straight scan from it finds one
+                if (jumpStraight(x, y, dx, 0) != -1 || jumpStraight(x, y, 0, dy) != -1) {
+                    return y * xExtent + x;
+                }
+            }
+            return -1;
+        }
+        return jumpStraight(x, y, dx, dy);
+    }
+
+    private int jumpStraight(int x, int y, int dx, int dy) {
+        while (!occupancy.isBlocked(x + dx, y + dy)) {
+            x += dx;
+            y += dy;
+            if (x == goalX && y == goalY) {
+                return y * xExtent + x;
+            }
+            // forced neighbours appear where the wall beside the line ends
+            if (dx != 0) {
+                if ((!occupancy.isBlocked(x, y - 1) && occupancy.isBlocked(x - dx, y - 1))
+                        || (!occupancy.isBlocked(x, y + 1) && occupancy.isBlocked(x - dx, y + 1))) {
+                    return y * xExtent + x;
+                }
+            }
+            else {
+                if ((!occupancy.isBlocked(x - 1, y) && occupancy.isBlocked(x - 1, y - dy))
+                        || (!occupancy.isBlocked(x + 1, y) && occupancy.isBlocked(x + 1, y - dy))) {
+                    return y * xExtent + x;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Walks the jump point parents back from the goal and fills in the single steps between them
+     */
+    private int[] expandPath(int goal) {
+        int length = 0;
+        for (int cell = goal; nodes.getParent(cell) != -1; cell = nodes.getParent(cell)) {
+            int from = nodes.getParent(cell);
+            length += occupancy.chebyshev(from, cell);
+        }
+        // the path leaves out the start cell and the goal cell
+        int[] cells = new int[Math.max(length - 1, 0)];
+        int index = length - 1;
+        for (int cell = goal; nodes.getParent(cell) != -1; cell = nodes.getParent(cell)) {
+            int from = nodes.getParent(cell);
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            int dx = Integer.signum(from % xExtent - x);
+            int dy = Integer.signum(from / xExtent - y);
+            while (y * xExtent + x != from) {
+                if (index < cells.length) {
+                    cells[index] = y * xExtent + x;
+                }
+                index--;
+                x += dx;
+                y += dy;
+            }
+        }
+        return cells;
+    }
+
+    private int heuristic(int x, int y) {
+        return OccupancyGrid.chebyshev(x, y, goalX, goalY);
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.Arrays;
+
+/**
+ * ALT (A*, landmarks and the triangle inequality) heuristic for one map, after Goldberg
+ * and Harrelson.
+ *
+ * A few landmark cells are picked spread out over the map, and a breadth first search
+ * from each one records its distance to every cell. For any landmark L the triangle
+ * inequality gives |d(L, goal) - d(L, cell)| <= d(cell, goal), so the largest of these
+ * differences is a lower bound on the real distance that knows about walls. On maze like
+ * maps it is far closer to the truth than the straight line distance, and A* expands
+ * correspondingly fewer cells. The bound is the maximum of consistent heuristics, so it is
+ * consistent as well.
+ *
+ * The distances are measured on the static layer of the OccupancyGrid only. Overlay units
+ * can only make paths longer, so the bounds stay admissible while they move around.
+ * Landmarks are chosen by farthest point sampling: each new one is the free cell farthest
+ * from all the landmarks picked so far, which puts them out in the corners and dead ends
+ * where they give the best bounds.
+ *
+ * Distances are kept as unsigned shorts, one table entry per cell and landmark, with the
+ * entries of a cell next to each other so a lookup reads a single short run.
+ */
+class LandmarkHeuristic {
+
+    // stored for cells the landmark cannot reach
+    private static final int UNREACHABLE = 0xFFFF;
+
+    private final long staticFingerprint;
+    private final boolean diagonalMoves;
+    private final int maxLandmarks;
+    private final int landmarkCount;
+    private final int[] landmarks;
+    private final short[] distances; // cell * landmarkCount + landmark
+
+    /**
+     * Picks up to maxLandmarks landmarks on the static layer of the grid and measures their
+     * distances. Fewer are used if the map has fewer free cells.
+     */
+    public LandmarkHeuristic(OccupancyGrid occupancy, int maxLandmarks, boolean diagonalMoves)
+    {
+        this.staticFingerprint = occupancy.getStaticFingerprint();
+        this.diagonalMoves = diagonalMoves;
+        this.maxLandmarks = maxLandmarks;
+        int xExtent = occupancy.getXExtent();
+        int cellCount = xExtent * occupancy.getYExtent();
+        int[] moveX = OccupancyGrid.moveX(diagonalMoves);
+        int[] moveY = OccupancyGrid.moveY(diagonalMoves);
+
+        int[] picked = new int[maxLandmarks];
+        int count = 0;
+        int[][] fromLandmark = new int[maxLandmarks][];
+
+        // distance of every cell to the nearest landmark so far
+        int[] nearest = new int[cellCount];
+        Arrays.fill(nearest, Integer.MAX_VALUE);
+        int[] queue = new int[cellCount];
+
+        // the first landmark is the cell farthest from some cell of the largest open area
+        int seed = largestAreaCell(occupancy, moveX, moveY, queue);
+        int[] seedDistances = seed == -1 ? null : breadthFirst(occupancy, seed, moveX, moveY, queue);
+        int next = seed == -1 ? -1 : farthest(seedDistances);
+
+        while (next != -1 && count < maxLandmarks) {
+            picked[count] = next;
+            fromLandmark[count] = breadthFirst(occupancy, next, moveX, moveY, queue);
+            for (int cell = 0; cell < cellCount; cell++) {
+                nearest[cell] = Math.min(nearest[cell], fromLandmark[count][cell]);
+            }
+            count++;
+            next = farthest(nearest);
+        }
+
+        this.landmarkCount = count;
+        this.landmarks = Arrays.copyOf(picked, count);
+        this.distances = new short[cellCount * count];
+        for (int landmark = 0; landmark < count; landmark++) {
+            for (int cell = 0; cell < cellCount; cell++) {
+                int distance = fromLandmark[landmark][cell];
+                distances[cell * count + landmark] = (short) Math.min(distance, UNREACHABLE);
+            }
+        }
+    }
+
+    /**
+     * Returns true if this was built for the same resources, landmark count and move set,
+     * so it can be used on the given grid
+     */
+    public boolean matches(OccupancyGrid occupancy, int maxLandmarks, boolean diagonalMoves) {
+        return staticFingerprint == occupancy.getStaticFingerprint() && this.maxLandmarks == maxLandmarks
+                && this.diagonalMoves == diagonalMoves;
+    }
+
+    public int getLandmarkCount() {
+        return landmarkCount;
+    }
+
+    public int[] getLandmarks() {
+        return landmarks.clone();
+    }
+
+    /**
+     * Looks up the landmark distances of a set of goal cells once, so every estimate toward
+     * them only has to read the table for the other cell. For each landmark this keeps the
+     * smallest and the largest distance over the set, or UNREACHABLE if the landmark cannot
+     * reach one of them.
+     */
+    public int[] goalRanges(int[] goals) {
+        int[] goalRanges = new int[2 * landmarkCount];
+        for (int landmark = 0; landmark < landmarkCount; landmark++) {
+            int low = UNREACHABLE;
+            int high = 0;
+            for (int goal : goals) {
+                int distance = distances[goal * landmarkCount + landmark] & 0xFFFF;
+                if (distance == UNREACHABLE) {
+                    low = UNREACHABLE;
+                    break;
+                }
+                low = Math.min(low, distance);
+                high = Math.max(high, distance);
+            }
+            goalRanges[2 * landmark] = low;
+            goalRanges[2 * landmark + 1] = high;
+        }
+        return goalRanges;
+    }
+
+    /**
+     * Returns the largest triangle inequality bound on the distance from a cell to the closest
+     * of the goal cells whose goalRanges are given. Any goal cell g gives
+     * d(cell, g) >= |d(L, g) - d(L, cell)|, and that is at least how far d(L, cell) lies outside
+     * the range of d(L, g) over the set. Landmarks that cannot reach every cell are skipped.
+     */
+    public int estimate(int cell, int[] goalRanges) {
+        int best = 0;
+        int base = cell * landmarkCount;
+        for (int landmark = 0; landmark < landmarkCount; landmark++) {
+            int distance = distances[base + landmark] & 0xFFFF;
+            int low = goalRanges[2 * landmark];
+            if (distance == UNREACHABLE || low == UNREACHABLE) {
+                continue;
+            }
+            int bound = Math.max(low - distance, distance - goalRanges[2 * landmark + 1]);
+            if (bound > best) {
+                best = bound;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Unit cost breadth first search over the static layer. Every step takes one turn, so
+     * this gives the same distances as Dijkstra.
+     */
+    private static int[] breadthFirst(OccupancyGrid occupancy, int source, int[] moveX, int[] moveY, int[] queue) {
+        int xExtent = occupancy.getXExtent();
+        int[] distance = new int[xExtent * occupancy.getYExtent()];
+        Arrays.fill(distance, Integer.MAX_VALUE);
+        distance[source] = 0;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = source;
+        while (head < tail) {
+            int cell = queue[head++];
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            for (int i = 0; i < moveX.length; i++) {
+                if (!occupancy.canStepStatic(x, y, moveX[i], moveY[i])) {
+                    continue;
+                }
+                int neighbour = cell + moveY[i] * xExtent + moveX[i];
+                if (distance[neighbour] == Integer.MAX_VALUE) {
+                    distance[neighbour] = distance[cell] + 1;
+                    queue[tail++] = neighbour;
+                }
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Returns the reachable cell with the largest distance that is not already a landmark
+     * (distance 0), or -1 if there is none
+     */
+    private static int farthest(int[] distance) {
+        int best = -1;
+        for (int cell = 0; cell < distance.length; cell++) {
+            if (distance[cell] == Integer.MAX_VALUE || distance[cell] == 0) {
+                continue;
+            }
+            if (best == -1 || distance[cell] > distance[best]) {
+                best = cell;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a cell of the largest connected area of free cells, or -1 if every cell is
+     * blocked. Smaller pockets the footman cannot get into would only waste landmarks.
+     */
+    private static int largestAreaCell(OccupancyGrid occupancy, int[] moveX, int[] moveY, int[] queue) {
+        int xExtent = occupancy.getXExtent();
+        boolean[] seen = new boolean[xExtent * occupancy.getYExtent()];
+        int best = -1;
+        int bestSize = 0;
+        for (int first = 0; first < seen.length; first++) {
+            if (seen[first] || occupancy.isStaticBlocked(first)) {
+                continue;
+            }
+            seen[first] = true;
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = first;
+            while (head < tail) {
+                int cell = queue[head++];
+                int x = cell % xExtent;
+                int y = cell / xExtent;
+                for (int i = 0; i < moveX.length; i++) {
+                    int neighbour = cell + moveY[i] * xExtent + moveX[i];
+                    if (occupancy.canStepStatic(x, y, moveX[i], moveY[i]) && !seen[neighbour]) {
+                        seen[neighbour] = true;
+                        queue[tail++] = neighbour;
+                    }
+                }
+            }
+            if (tail > bestSize) {
+                bestSize = tail;
+                best = first;
+            }
+        }
+        return best;
+    }
+}
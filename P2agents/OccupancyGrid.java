@@ -0,0 +1,219 @@
+import java.util.Arrays;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+
+/**
+ * Blocked cell bitmap for a SEPIA map.
+ *
+ * The static layer holds every resource node and is built once per map, after which
+ * it never changes. Units that move around, such as the enemy footman, are recorded
+ * in a separate overlay layer so they can be moved without rebuilding the map.
+ * Checking a cell is a single bit test on the two layers.
+ *
+ * The grid also keeps a version stamp derived from what is blocked: a fingerprint of the
+ * static layer combined with a hash of every overlay cell. It only changes when the
+ * occupancy actually changes, and two grids with the same blocked cells share a version,
+ * so cached paths can be reused across replans and across episodes on the same map.
+ *
+ * The offsets of the moves a unit can make and the distance that bounds them live here
+ * as well, so every planner steps over the grid the same way.
+ */
+class OccupancyGrid {
+
+    // offsets of the four cardinal neighbours, followed by the four diagonal ones
+    private static final int[] NEIGHBOUR_X = {-1, 1, 0, 0, -1, -1, 1, 1};
+    private static final int[] NEIGHBOUR_Y = {0, 0, -1, 1, -1, 1, -1, 1};
+    private static final int CARDINAL_COUNT = 4;
+
+    private final int xExtent;
+    private final int yExtent;
+    private final long[] staticBits;
+    private final long[] overlayBits;
+    private final long staticFingerprint;
+    private long overlayHash;
+
+    private OccupancyGrid(int xExtent, int yExtent, long[] staticBits)
+    {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.staticBits = staticBits;
+        this.overlayBits = new long[staticBits.length];
+
+        long fingerprint = mix(xExtent * 31L + yExtent);
+        for (int i = 0; i < staticBits.length; i++) {
+            fingerprint = mix(fingerprint ^ staticBits[i] ^ i);
+        }
+        this.staticFingerprint = fingerprint;
+    }
+
+    private OccupancyGrid(OccupancyGrid other)
+    {
+        this.xExtent = other.xExtent;
+        this.yExtent = other.yExtent;
+        this.staticBits = other.staticBits;
+        this.overlayBits = other.overlayBits.clone();
+        this.staticFingerprint = other.staticFingerprint;
+        this.overlayHash = other.overlayHash;
+    }
+
+    /**
+     * Builds the static layer from every resource node on the map
+     */
+    public static OccupancyGrid fromResources(State.StateView state) {
+        int xExtent = state.getXExtent();
+        int yExtent = state.getYExtent();
+        long[] bits = new long[(xExtent * yExtent + 63) >>> 6];
+        for (Integer resourceID : state.getAllResourceIds()) {
+            ResourceNode.ResourceView resource = state.getResourceNode(resourceID);
+            int cell = resource.getYPosition() * xExtent + resource.getXPosition();
+            bits[cell >>> 6] |= 1L << cell;
+        }
+        return new OccupancyGrid(xExtent, yExtent, bits);
+    }
+
+    /**
+     * Returns a grid with the same resources and a copy of the overlay as it is now, which
+     * later overlay changes do not affect. The static layer never changes, so it is shared.
+     */
+    public OccupancyGrid copy() {
+        return new OccupancyGrid(this);
+    }
+
+    public int getXExtent() {
+        return xExtent;
+    }
+
+    public int getYExtent() {
+        return yExtent;
+    }
+
+    /**
+     * Returns the x offsets of the moves a unit can make in one turn: the four cardinal
+     * steps, followed by the four diagonal ones with diagonalMoves. The y offset of each
+     * move is at the same index of moveY. Every call returns a new array.
+     */
+    public static int[] moveX(boolean diagonalMoves) {
+        return Arrays.copyOf(NEIGHBOUR_X, diagonalMoves ? NEIGHBOUR_X.length : CARDINAL_COUNT);
+    }
+
+    /**
+     * Returns the y offsets of the moves given by moveX
+     */
+    public static int[] moveY(boolean diagonalMoves) {
+        return Arrays.copyOf(NEIGHBOUR_Y, diagonalMoves ? NEIGHBOUR_Y.length : CARDINAL_COUNT);
+    }
+
+    /**
+     * Returns the Chebyshev distance between two cells, the number of turns between them
+     * on an empty map when diagonal steps are allowed and a lower bound on it when not
+     */
+    public static int chebyshev(int x, int y, int toX, int toY) {
+        return Math.max(Math.abs(toX - x), Math.abs(toY - y));
+    }
+
+    /**
+     * Returns the Chebyshev distance between two in bounds cell indices
+     */
+    public int chebyshev(int from, int to) {
+        return chebyshev(from % xExtent, from / xExtent, to % xExtent, to / xExtent);
+    }
+
+    /**
+     * Returns a stamp that identifies the current set of blocked cells
+     */
+    public long getVersion() {
+        return staticFingerprint ^ overlayHash;
+    }
+
+    /**
+     * Returns a stamp that identifies the resources on the map, ignoring the overlay
+     */
+    public long getStaticFingerprint() {
+        return staticFingerprint;
+    }
+
+    public boolean inBounds(int x, int y) {
+        return x >= 0 && x < xExtent && y >= 0 && y < yExtent;
+    }
+
+    /**
+     * Returns true if the cell is out of bounds or occupied by a resource or an overlay unit
+     */
+    public boolean isBlocked(int x, int y) {
+        return !inBounds(x, y) || isBlocked(y * xExtent + x);
+    }
+
+    /**
+     * Returns true if the in bounds cell index is occupied by a resource or an overlay unit
+     */
+    public boolean isBlocked(int cell) {
+        return ((staticBits[cell >>> 6] | overlayBits[cell >>> 6]) & (1L << cell)) != 0;
+    }
+
+    /**
+     * Returns true if the cell is out of bounds or occupied by a resource
+     */
+    public boolean isStaticBlocked(int x, int y) {
+        return !inBounds(x, y) || isStaticBlocked(y * xExtent + x);
+    }
+
+    /**
+     * Returns true if the in bounds cell index is occupied by a resource
+     */
+    public boolean isStaticBlocked(int cell) {
+        return (staticBits[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    /**
+     * Returns true if a unit can step from (x, y) by (dx, dy). Diagonal steps may not cut
+     * the corner of a blocked cell, so both cells beside the diagonal must be free as well.
+     */
+    public boolean canStep(int x, int y, int dx, int dy) {
+        if (isBlocked(x + dx, y + dy)) {
+            return false;
+        }
+        return dx == 0 || dy == 0 || (!isBlocked(x + dx, y) && !isBlocked(x, y + dy));
+    }
+
+    /**
+     * Same as canStep, but only resources count as blocked and overlay units are ignored
+     */
+    public boolean canStepStatic(int x, int y, int dx, int dy) {
+        if (isStaticBlocked(x + dx, y + dy)) {
+            return false;
+        }
+        return dx == 0 || dy == 0 || (!isStaticBlocked(x + dx, y) && !isStaticBlocked(x, y + dy));
+    }
+
+    /**
+     * Marks a cell as occupied by a moving unit
+     */
+    public void addOverlay(int x, int y) {
+        int cell = y * xExtent + x;
+        if ((overlayBits[cell >>> 6] & (1L << cell)) == 0) {
+            overlayBits[cell >>> 6] |= 1L << cell;
+            overlayHash ^= mix(cell + 1);
+        }
+    }
+
+    /**
+     * Clears a cell previously marked with addOverlay
+     */
+    public void removeOverlay(int x, int y) {
+        int cell = y * xExtent + x;
+        if ((overlayBits[cell >>> 6] & (1L << cell)) != 0) {
+            overlayBits[cell >>> 6] &= ~(1L << cell);
+            overlayHash ^= mix(cell + 1);
+        }
+    }
+
+    /**
+     * SplitMix64 finalizer, spreads the bits of a value over the whole long
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of planned paths.
+ *
+ * Entries are keyed by start cell, goal cell, planner and the OccupancyGrid version, so
+ * a path is only reused while the cells it was planned around are still the same. The
+ * cache is shared by every AstarAgent in the JVM, which lets replans and later episodes
+ * on the same map skip the search. Hit, miss and eviction counts are kept to help pick
+ * a capacity for a given set of scenarios.
+ */
+class PathCache {
+
+    // stored for searches that found no path, so those are not repeated either
+    private static final int[] UNREACHABLE = new int[0];
+
+    private static class PathKey {
+        final int start;
+        final int goal;
+        final long version;
+        final int planner;
+
+        PathKey(int start, int goal, long version, int planner)
+        {
+            this.start = start;
+            this.goal = goal;
+            this.version = version;
+            this.planner = planner;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PathKey)) {
+                return false;
+            }
+            PathKey other = (PathKey) obj;
+            return start == other.start && goal == other.goal && version == other.version && planner == other.planner;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * start + goal;
+            hash = 31 * hash + (int) (version ^ (version >>> 32));
+            return 31 * hash + planner;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<PathKey, int[]> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PathCache(final int capacity)
+    {
+        this.capacity = capacity;
+        // access order turns the map into an LRU list
+        this.entries = new LinkedHashMap<PathKey, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PathKey, int[]> eldest) {
+                if (size() > PathCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a copy of the cached path cells, or null on a miss. A cached search that found
+     * no path comes back as an array that isUnreachable recognises.
+     */
+    public synchronized int[] get(int start, int goal, long version, int planner) {
+        int[] cells = entries.get(new PathKey(start, goal, version, planner));
+        if (cells == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cells == UNREACHABLE ? cells : cells.clone();
+    }
+
+    /**
+     * Returns true if a result from get stands for a search that found no path
+     */
+    public static boolean isUnreachable(int[] cells) {
+        return cells == UNREACHABLE;
+    }
+
+    /**
+     * Stores the cells of a path, or records that there was no path when cells is null
+     */
+    public synchronized void put(int start, int goal, long version, int planner, int[] cells) {
+        if (capacity <= 0) {
+            return;
+        }
+        entries.put(new PathKey(start, goal, version, planner), cells == null ? UNREACHABLE : cells.clone());
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
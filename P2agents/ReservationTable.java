@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+/**
+ * Space-time reservation table shared by cooperatively planned units.
+ *
+ * A reservation says that a unit will stand on a cell during a given turn. Turns are
+ * absolute, and the table only has to hold a sliding window of them, so the slots are
+ * a ring of depth turns and every entry carries the turn it was written for. An entry
+ * left over from an earlier lap of the ring has the wrong turn and simply reads as free,
+ * so nothing ever has to be cleared when the window moves on.
+ *
+ * A unit that has reached its destination parks there, which reserves the cell from
+ * that turn on with no end.
+ */
+class ReservationTable {
+
+    private static final int NONE = -1;
+
+    private final int cellCount;
+    private final int depth;
+    private final int[] owner;
+    private final int[] ownerTurn;
+    private final int[] parkedBy;
+    private final int[] parkedFrom;
+
+    public ReservationTable(int cellCount, int depth)
+    {
+        this.cellCount = cellCount;
+        this.depth = depth;
+        this.owner = new int[cellCount * depth];
+        this.ownerTurn = new int[cellCount * depth];
+        this.parkedBy = new int[cellCount];
+        this.parkedFrom = new int[cellCount];
+        Arrays.fill(ownerTurn, NONE);
+        Arrays.fill(parkedBy, NONE);
+    }
+
+    /**
+     * Returns true if a unit other than unitID holds the cell during the given turn
+     */
+    public boolean isReserved(int cell, int turn, int unitID) {
+        if (parkedBy[cell] != NONE && parkedBy[cell] != unitID && turn >= parkedFrom[cell]) {
+            return true;
+        }
+        int slot = slot(cell, turn);
+        return ownerTurn[slot] == turn && owner[slot] != unitID;
+    }
+
+    /**
+     * Returns true if no other unit holds the cell during any turn from the given one to
+     * the end of the window, so unitID could park there
+     */
+    public boolean isFreeFrom(int cell, int turn, int lastTurn, int unitID) {
+        if (parkedBy[cell] != NONE && parkedBy[cell] != unitID) {
+            return false;
+        }
+        for (int t = turn; t <= lastTurn; t++) {
+            if (isReserved(cell, t, unitID)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void reserve(int cell, int turn, int unitID) {
+        int slot = slot(cell, turn);
+        owner[slot] = unitID;
+        ownerTurn[slot] = turn;
+    }
+
+    /**
+     * Drops a reservation, but only if unitID still holds it
+     */
+    public void release(int cell, int turn, int unitID) {
+        int slot = slot(cell, turn);
+        if (ownerTurn[slot] == turn && owner[slot] == unitID) {
+            ownerTurn[slot] = NONE;
+        }
+    }
+
+    public void park(int cell, int fromTurn, int unitID) {
+        parkedBy[cell] = unitID;
+        parkedFrom[cell] = fromTurn;
+    }
+
+    public void unpark(int cell, int unitID) {
+        if (parkedBy[cell] == unitID) {
+            parkedBy[cell] = NONE;
+        }
+    }
+
+    private int slot(int cell, int turn) {
+        return (turn % depth) * cellCount + cell;
+    }
+}
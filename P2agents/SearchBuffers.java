@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+/**
+ * Per cell search state that is kept and reused from one search to the next.
+ *
+ * A search over a whole map needs a cost, a parent and an open or closed flag for every
+ * cell, and allocating and clearing those arrays for each search costs more than the
+ * search itself on short paths. Here every cell carries the number of the search that
+ * last wrote it instead, and a cell stamped by an older search reads as unseen. Starting
+ * a search only bumps that number and empties the open list, so nothing the size of the
+ * map is allocated or cleared after the first search.
+ */
+class SearchBuffers {
+
+    private static final int INFINITY = Integer.MAX_VALUE / 4;
+
+    private final int[] cost;
+    private final int[] parent;
+    // 2 * search for cells seen in a search, one more once they are closed
+    private final int[] stamp;
+    private final IndexedMinHeap open;
+    private int search;
+
+    public SearchBuffers(int cellCount)
+    {
+        this.cost = new int[cellCount];
+        this.parent = new int[cellCount];
+        this.stamp = new int[cellCount];
+        this.open = new IndexedMinHeap(cellCount);
+    }
+
+    public int getCellCount() {
+        return cost.length;
+    }
+
+    /**
+     * Forgets the state of the last search. Only the open list is walked, the per cell
+     * arrays are left as they are.
+     */
+    public void reset() {
+        open.clear();
+        search++;
+        if (2 * search + 1 < 0) {
+            // the stamps ran out, so start over from a clean slate
+            Arrays.fill(stamp, 0);
+            search = 1;
+        }
+    }
+
+    public IndexedMinHeap getOpen() {
+        return open;
+    }
+
+    /**
+     * Returns true if the cell has been given a cost in this search
+     */
+    public boolean isSeen(int cell) {
+        return stamp[cell] >= 2 * search;
+    }
+
+    public boolean isClosed(int cell) {
+        return stamp[cell] == 2 * search + 1;
+    }
+
+    /**
+     * Returns the cost of the cell in this search, or a very large value if it has not
+     * been seen yet
+     */
+    public int getCost(int cell) {
+        return isSeen(cell) ? cost[cell] : INFINITY;
+    }
+
+    public int getParent(int cell) {
+        return parent[cell];
+    }
+
+    /**
+     * Gives a cell a cost and a parent, and marks it seen but not closed
+     */
+    public void setCost(int cell, int cellCost, int cellParent) {
+        cost[cell] = cellCost;
+        parent[cell] = cellParent;
+        stamp[cell] = 2 * search;
+    }
+
+    public void close(int cell) {
+        stamp[cell] = 2 * search + 1;
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.Arrays;
+
+/**
+ * Space-time A* around where the enemy footman is expected to be.
+ *
+ * On the dynamic map the enemy footman keeps walking into the footman's path, and a plan
+ * that treats its current cell as a wall is out of date as soon as it moves. This keeps
+ * the enemy's last few positions and extrapolates its average velocity over the next
+ * horizon turns, stopping it at the first resource in its way. The search runs over
+ * (cell, turn) states, where waiting in place is a move too, and never enters a cell on
+ * the turn the enemy is expected to stand on it or to still be leaving it. Past the
+ * horizon the prediction is too unreliable to plan around, so the states there drop
+ * their turn and the search carries on as plain A* over the resources.
+ *
+ * conflicts checks a step of a path against the latest prediction, so the agent only
+ * replans when the enemy is expected to get in the way, and not every time it stands on
+ * a cell the path passes through later.
+ */
+class SpaceTimePlanner {
+
+    private static final int NONE = -1;
+
+    // positions the enemy's velocity is averaged over
+    private static final int MEMORY = 4;
+
+    private final OccupancyGrid occupancy;
+    private final int xExtent;
+    private final int cellCount;
+    private final int horizon;
+    private final int[] moveX;
+    private final int[] moveY;
+
+    // the enemy's last positions and the turns they were seen on, as a ring
+    private final int[] seenCell = new int[MEMORY];
+    private final int[] seenTurn = new int[MEMORY];
+    private int seenCount;
+
+    // cell the enemy is expected on, by turns from the last sighting, NONE without an enemy
+    private final int[] predicted;
+
+    // search state over (layer, cell), where the layer is the turn capped at the horizon
+    private final SearchBuffers nodes;
+
+    public SpaceTimePlanner(OccupancyGrid occupancy, int horizon, boolean diagonalMoves)
+    {
+        this.occupancy = occupancy;
+        this.xExtent = occupancy.getXExtent();
+        this.cellCount = xExtent * occupancy.getYExtent();
+        this.horizon = horizon;
+        // the moves of the grid, then waiting in place as the (0, 0) offset copyOf pads them with
+        int[] stepX = OccupancyGrid.moveX(diagonalMoves);
+        int[] stepY = OccupancyGrid.moveY(diagonalMoves);
+        this.moveX = Arrays.copyOf(stepX, stepX.length + 1);
+        this.moveY = Arrays.copyOf(stepY, stepY.length + 1);
+        this.predicted = new int[horizon + 1];
+        Arrays.fill(predicted, NONE);
+        this.nodes = new SearchBuffers((horizon + 1) * cellCount);
+    }
+
+    /**
+     * Records where the enemy footman stands on a turn and predicts its next moves from
+     * there. A second sighting on the same turn is ignored.
+     */
+    public void observe(int enemyCell, int turn) {
+        if (seenCount > 0 && seenTurn[(seenCount - 1) % MEMORY] == turn) {
+            return;
+        }
+        seenCell[seenCount % MEMORY] = enemyCell;
+        seenTurn[seenCount % MEMORY] = turn;
+        seenCount++;
+        predict();
+    }
+
+    /**
+     * Returns true if being on the cell the given number of turns from now would run into
+     * the enemy, because it is expected there on that turn or on the one before
+     */
+    public boolean conflicts(int turnsAhead, int cell) {
+        return turnsAhead <= horizon && (predicted[turnsAhead] == cell || predicted[turnsAhead - 1] == cell);
+    }
+
+    /**
+     * Plans from the start to a free cell next to the target. Returns the cells the
+     * footman stands on after each turn, where a repeated cell is a turn spent waiting,
+     * or null if the target cannot be reached over the resources.
+     */
+    public int[] plan(int startX, int startY, int targetX, int targetY, LandmarkHeuristic landmarks) {
+        int target = targetY * xExtent + targetX;
+        int[] goalCells = goalCells(targetX, targetY);
+        if (goalCells.length == 0) {
+            return null;
+        }
+        int[] goalRanges = landmarks == null ? null : landmarks.goalRanges(goalCells);
+
+        nodes.reset();
+        IndexedMinHeap open = nodes.getOpen();
+        int start = startY * xExtent + startX;
+        nodes.setCost(start, 0, NONE);
+        int startH = estimate(start, goalCells, landmarks, goalRanges);
+        open.insertOrDecrease(start, startH, startH);
+
+        while (!open.isEmpty()) {
+            int state = open.poll();
+            int layer = state / cellCount;
+            int cell = state % cellCount;
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            if (OccupancyGrid.chebyshev(x, y, targetX, targetY) == 1) {
+                return toCells(state);
+            }
+            nodes.close(state);
+
+            int turn = nodes.getCost(state) + 1;
+            int childLayer = Math.min(turn, horizon);
+            for (int i = 0; i < moveX.length; i++) {
+                boolean wait = moveX[i] == 0 && moveY[i] == 0;
+                // waiting only helps while the enemy is still being planned around
+                if (wait ? layer == horizon : !occupancy.canStepStatic(x, y, moveX[i], moveY[i])) {
+                    continue;
+                }
+                int child = cell + moveY[i] * xExtent + moveX[i];
+                if (child == target || conflicts(turn, child)) {
+                    continue;
+                }
+                int childState = childLayer * cellCount + child;
+                if (nodes.isClosed(childState) || turn >= nodes.getCost(childState)) {
+                    continue;
+                }
+                nodes.setCost(childState, turn, state);
+                int h = estimate(child, goalCells, landmarks, goalRanges);
+                open.insertOrDecrease(childState, turn + h, h);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Extrapolates the average velocity over the remembered sightings, one step at most per
+     * turn on each axis, until it runs into a resource, where the enemy is assumed to stop
+     */
+    private void predict() {
+        int newest = (seenCount - 1) % MEMORY;
+        int oldest = seenCount > MEMORY ? seenCount % MEMORY : 0;
+        int x = seenCell[newest] % xExtent;
+        int y = seenCell[newest] / xExtent;
+        int turns = seenTurn[newest] - seenTurn[oldest];
+        double velocityX = turns == 0 ? 0 : (x - seenCell[oldest] % xExtent) / (double) turns;
+        double velocityY = turns == 0 ? 0 : (y - seenCell[oldest] / xExtent) / (double) turns;
+
+        predicted[0] = seenCell[newest];
+        boolean stopped = false;
+        for (int t = 1; t <= horizon; t++) {
+            int nextX = x + (int) Math.round(velocityX * t);
+            int nextY = y + (int) Math.round(velocityY * t);
+            stopped = stopped || occupancy.isStaticBlocked(nextX, nextY);
+            predicted[t] = stopped ? predicted[t - 1] : nextY * xExtent + nextX;
+        }
+    }
+
+    /**
+     * Larger of the Chebyshev distance to the closest goal cell and the landmark bound
+     */
+    private int estimate(int cell, int[] goalCells, LandmarkHeuristic landmarks, int[] goalRanges) {
+        int x = cell % xExtent;
+        int y = cell / xExtent;
+        int h = Integer.MAX_VALUE;
+        for (int goalCell : goalCells) {
+            h = Math.min(h, OccupancyGrid.chebyshev(x, y, goalCell % xExtent, goalCell / xExtent));
+        }
+        if (landmarks != null) {
+            h = Math.max(h, landmarks.estimate(cell, goalRanges));
+        }
+        return h;
+    }
+
+    /**
+     * Returns the cells around the target that are free of resources
+     */
+    private int[] goalCells(int targetX, int targetY) {
+        int[] cells = new int[8];
+        int count = 0;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if ((dx != 0 || dy != 0) && !occupancy.isStaticBlocked(targetX + dx, targetY + dy)) {
+                    cells[count++] = (targetY + dy) * xExtent + targetX + dx;
+                }
+            }
+        }
+        return Arrays.copyOf(cells, count);
+    }
+
+    /**
+     * Walks the parents back from the final state. Every move and every wait takes a turn,
+     * so its cost is the number of cells on the path.
+     */
+    private int[] toCells(int state) {
+        int[] cells = new int[nodes.getCost(state)];
+        for (int i = cells.length - 1; i >= 0; i--) {
+            cells[i] = state % cellCount;
+            state = nodes.getParent(state);
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/**
+ * Integer cost of stepping onto each cell of a map, for searches that should rather go
+ * around some cells than through them.
+ *
+ * Every cell costs 1 to begin with, which is the one turn any step takes, and penalties
+ * are added on top around the cells to keep away from, such as enemy towers. No cell
+ * costs less than 1, so a distance measured in steps is still a lower bound on the
+ * weighted cost and the Chebyshev and landmark heuristics stay admissible and consistent.
+ * The costs stay small integers as well, which is what BucketQueue needs.
+ */
+class TerrainWeights {
+
+    private final int xExtent;
+    private final int yExtent;
+    private final int[] weight;
+    private long fingerprint = 1;
+
+    public TerrainWeights(int xExtent, int yExtent)
+    {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.weight = new int[xExtent * yExtent];
+        Arrays.fill(weight, 1);
+    }
+
+    private TerrainWeights(TerrainWeights other)
+    {
+        this.xExtent = other.xExtent;
+        this.yExtent = other.yExtent;
+        this.weight = other.weight.clone();
+        this.fingerprint = other.fingerprint;
+    }
+
+    /**
+     * Returns a copy that later penalties added to this one do not affect
+     */
+    public TerrainWeights copy() {
+        return new TerrainWeights(this);
+    }
+
+    /**
+     * Adds a penalty to every cell within the given Chebyshev radius of a cell
+     */
+    public void addPenaltyAround(int x, int y, int radius, int penalty) {
+        for (int cellY = Math.max(0, y - radius); cellY <= Math.min(yExtent - 1, y + radius); cellY++) {
+            for (int cellX = Math.max(0, x - radius); cellX <= Math.min(xExtent - 1, x + radius); cellX++) {
+                weight[cellY * xExtent + cellX] += penalty;
+            }
+        }
+        fingerprint = 31 * fingerprint + ((((long) y * xExtent + x) * 31 + radius) * 31 + penalty);
+    }
+
+    /**
+     * Returns the cost of stepping onto a cell, at least 1
+     */
+    public int getWeight(int cell) {
+        return weight[cell];
+    }
+
+    /**
+     * Returns a stamp that identifies the penalties added so far, so paths planned with
+     * different weights are not mixed up
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+}
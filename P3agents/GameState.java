@@ -2,17 +2,9 @@ package edu.cwru.sepia.agent.minimax;
 
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionType;
-import edu.cwru.sepia.action.DirectedAction;
-import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.state.ResourceNode;
 import edu.cwru.sepia.environment.model.state.ResourceNode.ResourceView;
 import edu.cwru.sepia.environment.model.state.State;
-import edu.cwru.sepia.environment.model.state.State.StateBuilder;
-import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.environment.model.state.Unit.UnitView;
-import edu.cwru.sepia.environment.model.state.UnitTemplate;
-import edu.cwru.sepia.environment.model.state.UnitTemplate.UnitTemplateView;
 import edu.cwru.sepia.util.Direction;
 import edu.cwru.sepia.util.DistanceMetrics;
 
@@ -24,23 +16,90 @@ import java.util.*;
  *
  * Add any information or methods you would like to this class,
  * but do not delete or change the signatures of the provided methods.
+ *
+ * Only the root state is read from SEPIA. The search builds far too many states to give
+ * each one its own SEPIA State, so below the root a state is a single int array with the
+ * x, y and HP of every unit, and everything that does not change during the search (the
+ * map size, the trees and which unit is which) lives in one Board they all share. A child
+ * is its parent's array copied with the entries its move changed written over. The search
+ * itself does not even copy: it makes and unmakes moves on one copyForSearch state.
  */
 public class GameState {
-    
-    private State.StateView state;
+
+    // damage of a single attack by any unit
+    private static final int DAMAGE = 10;
+    private static final Direction[] DIRECTIONS = Direction.values();
+    // unit options below this are moves in that direction, from it on attacks on unit slot option - ATTACK
+    private static final int ATTACK = DIRECTIONS.length;
+    // a move packs the slot and option of each moving unit into a byte each, the second
+    // unit's slot is NONE when only one unit moves
+    private static final int NONE = 0xFF;
+
+    private final Board board;
+    // x, y and hp of every unit slot, a unit with no hp left is dead
+    private final int[] units;
     private double savedUtility;
-    private int myPlayerNum = 0;
-    private int enemyPlayerNum = 1;
-    // Lists of units
-    private List<Integer> myUnitIds;
-    private List<Integer> enemyUnitIds;
-    private List<Integer> resourceIDs;
-    private List<Integer> archerIds = new ArrayList<Integer>();
-    private List<Integer> footmanIds = new ArrayList<Integer>();
-    private int xExtent;
-    private int yExtent;
-    private int turn;
-    
+    // Zobrist hash of the unit positions and HP and of whose turn it is
+    private long zobristKey;
+
+    // only kept by a copyForSearch board, to take back the moves made on it
+    private int[] undoEntries; // unit array index and old value of every entry written
+    private int undoTop;
+    private int[] undoMarks; // undoTop before each move made
+    private long[] undoKeys; // hash before each move made
+    private int movesMade;
+
+    /**
+     * What stays the same for the whole search. Footmen take the first unit slots and
+     * archers the rest. The actions are built once and shared by every child that uses them.
+     */
+    private static final class Board {
+        final int xExtent;
+        final int yExtent;
+        final boolean[] tree; // y * xExtent + x
+        final int[] unitIds;
+        final int[] baseHealth;
+        final int footmanCount;
+        final Action[][] moves; // slot, direction
+        final Action[][] attacks; // slot, target slot
+
+        Board(int xExtent, int yExtent, boolean[] tree, int[] unitIds, int[] baseHealth, int footmanCount)
+        {
+            this.xExtent = xExtent;
+            this.yExtent = yExtent;
+            this.tree = tree;
+            this.unitIds = unitIds;
+            this.baseHealth = baseHealth;
+            this.footmanCount = footmanCount;
+            // the options of a unit are kept as bits of a long
+            if (ATTACK + unitIds.length > Long.SIZE) {
+                throw new IllegalArgumentException("Too many units: " + unitIds.length);
+            }
+            this.moves = new Action[unitIds.length][DIRECTIONS.length];
+            this.attacks = new Action[unitIds.length][unitIds.length];
+            for (int slot = 0; slot < unitIds.length; slot++) {
+                for (int d = 0; d < DIRECTIONS.length; d++) {
+                    moves[slot][d] = Action.createPrimitiveMove(unitIds[slot], DIRECTIONS[d]);
+                }
+                for (int target = 0; target < unitIds.length; target++) {
+                    attacks[slot][target] = Action.createPrimitiveAttack(unitIds[slot], unitIds[target]);
+                }
+            }
+        }
+
+        boolean isArcher(int slot) {
+            return slot >= footmanCount;
+        }
+
+        boolean isTree(int x, int y) {
+            return tree[y * xExtent + x];
+        }
+
+        boolean inBounds(int x, int y) {
+            return x >= 0 && y >= 0 && x < xExtent && y < yExtent;
+        }
+    }
+
     /**
      * You will implement this constructor. It will
      * extract all of the needed state information from the built in
@@ -63,40 +122,67 @@ public class GameState {
      * @param state Current state of the episode
      */
     public GameState(State.StateView state) {
-        this.state = state;
-        myUnitIds = state.getUnitIds(myPlayerNum);
-        enemyUnitIds = state.getUnitIds(enemyPlayerNum);
-        resourceIDs = state.getAllResourceIds();
-        populateIdLists(myUnitIds);
-        populateIdLists(enemyUnitIds);
-        this.xExtent = state.getXExtent();
-        this.yExtent = state.getYExtent();
-        this.turn = state.getTurnNumber();
+        int xExtent = state.getXExtent();
+        boolean[] tree = new boolean[xExtent * state.getYExtent()];
+        for (ResourceView resource : state.getAllResourceNodes()) {
+            tree[resource.getYPosition() * xExtent + resource.getXPosition()] = true;
+        }
+
+        List<UnitView> footmen = new ArrayList<UnitView>();
+        List<UnitView> archers = new ArrayList<UnitView>();
+        populateUnitLists(state, state.getUnitIds(0), footmen, archers);
+        populateUnitLists(state, state.getUnitIds(1), footmen, archers);
+        List<UnitView> all = new ArrayList<UnitView>(footmen);
+        all.addAll(archers);
+
+        int[] unitIds = new int[all.size()];
+        int[] baseHealth = new int[all.size()];
+        units = new int[3 * all.size()];
+        for (int slot = 0; slot < all.size(); slot++) {
+            UnitView unit = all.get(slot);
+            unitIds[slot] = unit.getID();
+            baseHealth[slot] = unit.getTemplateView().getBaseHealth();
+            units[3 * slot] = unit.getXPosition();
+            units[3 * slot + 1] = unit.getYPosition();
+            units[3 * slot + 2] = unit.getHP();
+            // the footmen move first, so only the units go into the hash
+            zobristKey ^= Zobrist.position(unit.getID(), unit.getXPosition(), unit.getYPosition())
+                    ^ Zobrist.health(unit.getID(), unit.getHP());
+        }
+        board = new Board(xExtent, state.getYExtent(), tree, unitIds, baseHealth, footmen.size());
+    }
+
+    /**
+     * Creates a state on the same board from a unit array and its hash
+     */
+    private GameState(Board board, int[] units, long zobristKey) {
+        this.board = board;
+        this.units = units;
+        this.zobristKey = zobristKey;
     }
-    
+
     /**
-     * Populates UnitId lists
+     * Sorts units into footmen and archers
      * @author Previn Kumar
      */
-    private void populateIdLists(List<Integer> unitIds) {
+    private static void populateUnitLists(State.StateView state, List<Integer> unitIds, List<UnitView> footmen, List<UnitView> archers) {
         // Classifies each unit ID as a Footman, or Archer
         for(Integer unitID : unitIds) {
-            Unit.UnitView unit = state.getUnit(unitID);
+            UnitView unit = state.getUnit(unitID);
             String unitTypeName = unit.getTemplateView().getName();
             if (unitTypeName.equals("Footman")) {
-                footmanIds.add(unitID);
+                footmen.add(unit);
             }
             else if (unitTypeName.equals("Archer")) {
-                archerIds.add(unitID);
+                archers.add(unit);
             }
             else {
                 System.err.println("Unexpected Unit type: " + unitTypeName);
             }
         }
     }
-    
+
     /**
-     *W
      *
      * Calculate the utility based on total footmanHP, archerHP, number of footmen/archers,
      *  number of trees blocking the footmen and average distance between footmen and nearest archer
@@ -111,119 +197,103 @@ public class GameState {
         double numFootman_Weight = 15;
         double numArcher_Weight = -15;
         double averageDistance_Weight = -2;
-        double numAttacking_Weight = 20;
         double tree_Weight = -10;
-        
-        
-        
-        int numAttacking  = 0;
+
         double footmanHP = 0;
         double archerHP = 0;
-        int numFootman = footmanIds.size();
-        int numArcher = archerIds.size();
+        int numFootman = 0;
+        int numArcher = 0;
         int numBlockingTrees = 0;
         double averageDistance = 0;
-        
-        for(int i: footmanIds){
-            footmanHP += state.getUnit(i).getHP()/state.getUnit(i).getTemplateView().getBaseHealth();
-            double shortestDistance = shortestDistance(i);
-            if(shortestDistance <= 1){
-                numAttacking++;
+
+        for (int slot = 0; slot < board.footmanCount; slot++) {
+            if (!isAlive(slot)) {
+                continue;
+            }
+            numFootman++;
+            footmanHP += hp(slot) / (double) board.baseHealth[slot];
+            int closestArcher = closestArcher(slot);
+            if (closestArcher != -1) {
+                averageDistance += distance(slot, closestArcher);
+                numBlockingTrees += numTreesBlocking(slot, closestArcher);
             }
-            int closestArcher = closestArcher(i);
-            
-            
-            averageDistance += shortestDistance;
-            numBlockingTrees += numTreesBlocking(i, closestArcher);
-            
         }
-        
-        
-        for(int i: archerIds){
-            archerHP += state.getUnit(i).getHP()/state.getUnit(i).getTemplateView().getBaseHealth();
+
+        for (int slot = board.footmanCount; slot < board.unitIds.length; slot++) {
+            if (isAlive(slot)) {
+                numArcher++;
+                archerHP += hp(slot) / (double) board.baseHealth[slot];
+            }
         }
-        
-        
+
         //Calculate utility based on the calculated values multiplied by their associated weight
-        averageDistance /= footmanIds.size();
-        footmanHP /= footmanIds.size();
-        archerHP /= archerIds.size();
-        
+        //A side that has been wiped out keeps averages of 0
+        if (numFootman > 0) {
+            averageDistance /= numFootman;
+            footmanHP /= numFootman;
+        }
+        if (numArcher > 0) {
+            archerHP /= numArcher;
+        }
+
         return (footmanHP*HP_Weight) + (archerHP*ArcherHP_Weight) + (numFootman*numFootman_Weight) + (numArcher*numArcher_Weight) + (averageDistance*averageDistance_Weight) + (numBlockingTrees*tree_Weight);
     }
+
     //Calculates number of trees between the archer and the footman diagonal. Will return the 0 if there is no tree within this diagonal and 1 if there is a tree
-    public int numTreesBlocking(int footmanID, int archerID){
-        UnitView footman = state.getUnit(footmanID);
-        UnitView archer = state.getUnit(archerID);
-        int x = footman.getXPosition();
-        int y = footman.getYPosition();
-        //Iterate throught the diagonal between the archer and the footman to check if a resource (Tree) is present in the diagonal.
-        while( x != archer.getXPosition() || y != archer.getYPosition()){
-            if(state.inBounds(x,y) && state.isResourceAt(x, y))
+    private int numTreesBlocking(int footman, int archer){
+        int x = x(footman);
+        int y = y(footman);
+        //Walk diagonally toward the archer, then straight once one of the coordinates lines up, checking each cell for a tree
+        while (x != x(archer) || y != y(archer)) {
+            if (board.isTree(x, y)) {
                 return 1;
-            if(x < archer.getXPosition()){
-                x++;
-            }
-            
-            else if(x > archer.getXPosition()){
-                x--;
-            }
-            
-            if(y < archer.getYPosition()){
-                x++;
-            }
-            
-            else if(x > archer.getYPosition()){
-                x--;
             }
+            x += Integer.signum(x(archer) - x);
+            y += Integer.signum(y(archer) - y);
         }
         return 0;
     }
-    
-    //Function that calculates the distance between a footman and the closest archer.
-    public double shortestDistance(int footmanID){
-        UnitView footman = state.getUnit(footmanID);
+
+    /**
+     * Returns the slot of the living archer closest to the footman, or -1 if there is none
+     */
+    private int closestArcher(int footman){
         double shortestDistance = Double.POSITIVE_INFINITY;
-        for(int a:archerIds){
-            UnitView archer = state.getUnit(a);
-            double distance = DistanceMetrics.euclideanDistance(footman.getXPosition(), footman.getYPosition(), archer.getXPosition(), archer.getYPosition());
-            if(distance < shortestDistance){
-                shortestDistance = distance;
+        int closest = -1;
+        for (int archer = board.footmanCount; archer < board.unitIds.length; archer++) {
+            if (isAlive(archer) && distance(footman, archer) < shortestDistance) {
+                shortestDistance = distance(footman, archer);
+                closest = archer;
             }
         }
-        return shortestDistance;
+        return closest;
     }
-    
-    public int closestArcher(int footmanID){
-        UnitView footman = state.getUnit(footmanID);
-        double shortestDistance = Double.POSITIVE_INFINITY;
-        int archerID = 0;
-        for(int a:archerIds){
-            UnitView archer = state.getUnit(a);
-            double distance = DistanceMetrics.euclideanDistance(footman.getXPosition(), footman.getYPosition(), archer.getXPosition(), archer.getYPosition());
-            if(distance < shortestDistance){
-                shortestDistance = distance;
-                archerID = a;
-                
-            }
-        }
-        return archerID;
+
+    private double distance(int slot, int other) {
+        return DistanceMetrics.euclideanDistance(x(slot), y(slot), x(other), y(other));
     }
-    
+
     /**
      * Returns the saved utility of the GameState
      */
     public double getSavedUtility() {
         return savedUtility;
     }
-    
+
     /**
      * Sets the saved utility
      */
     public void setSavedUtility(double util) {
         savedUtility = util;
     }
-    
+
+    /**
+     * Returns the Zobrist hash of the state, for the transposition table
+     */
+    public long getZobristKey() {
+        return zobristKey;
+    }
+
     /**
      * You will implement this function.
      *
@@ -242,458 +312,265 @@ public class GameState {
      * @author Minhal Gardezi
      */
     public List<GameStateChild> getChildren(int playerIdTurn) {
-    	if (playerIdTurn == 0) {
-    		return generatePossibleChildren(footmanIds, playerIdTurn);
-    	}
-    	else {
-    		return generatePossibleChildren(archerIds, playerIdTurn);
-    	}
+        int[] moves = new int[maxMoves()];
+        int count = getMoves(playerIdTurn, moves);
+        List<GameStateChild> child_states = new ArrayList<GameStateChild>(count);
+        for (int i = 0; i < count; i++) {
+            child_states.add(getChild(moves[i]));
+        }
+        return child_states;
     }
-    
+
     /**
-     * 
-     * @param unitIds Units to generate possible moves for
-     * @param playerTurn current playeNumber
-     * @return List of child states
+     * Returns the largest number of moves getMoves can return, the size of array it needs
      */
-    public List<GameStateChild> generatePossibleChildren(List<Integer> unitIds, int playerTurn) {
-    	List<GameStateChild> child_states = new LinkedList<GameStateChild>();
-    	int[] unit_locations = new int[4];
-    	// Generate all combination of directional child states and one combination of direction and an attack move
-        for (Direction direction : Direction.values()) {
-        	int newX = state.getUnit(unitIds.get(0)).getXPosition() + direction.xComponent();
-        	int newY = state.getUnit(unitIds.get(0)).getYPosition() + direction.yComponent();
-        	if (state.inBounds(newX, newY) && !state.isUnitAt(newX, newY) && !state.isResourceAt(newX, newY)) {
-	        	// Stores the new location of the unit
-	        	unit_locations[0] = newX;
-	        	unit_locations[1] = newY;
-	        	Map<Integer, Action> unit_actions = new HashMap<Integer, Action>();
-	        	// Adds the unit action to the action map
-	        	unit_actions.put(unitIds.get(0), Action.createPrimitiveMove(unitIds.get(0), direction));
-	        	// if there are two units get a combination of directional moves or unit1 moves and unit2 attacks
-	        	if (unitIds.size() == 2) {
-	        		// Create GameStateChild for every second direction in combination with the first
-	        		for (Direction direction2 : Direction.values()) {
-	        			int newX2 = state.getUnit(unitIds.get(0)).getXPosition() + direction.xComponent();
-	                	int newY2 = state.getUnit(unitIds.get(0)).getYPosition() + direction.yComponent();
-	                	if (state.inBounds(newX2, newY2) && !state.isUnitAt(newX2, newY2) && !state.isResourceAt(newX2, newY2)) {
-		        			// Stores the new location of the second unit
-		        			unit_locations[2] = state.getUnit(unitIds.get(1)).getXPosition() + direction2.xComponent();
-		                	unit_locations[3] = state.getUnit(unitIds.get(1)).getYPosition() + direction2.yComponent();
-		                	Map<Integer, Action> sec_unit_actions = new HashMap<Integer, Action>();
-		                	// Adds the unit action to the second action map, so the first can be reused in other iterations
-		                	sec_unit_actions.put(unitIds.get(0), Action.createPrimitiveMove(unitIds.get(1), direction2));
-		                	sec_unit_actions.putAll(unit_actions);
-		                	child_states.add(new GameStateChild(sec_unit_actions, createMoveState(unit_locations, playerTurn)));
-	                	}
-	        		}
-	        		// Create a GameState where first unit moves and second attacks
-	        		if (playerTurn == enemyPlayerNum || isArcherAdjacent(unitIds.get(1))) {
-	        			//create a combination of move and attack for the footman
-	        			if (playerTurn == myPlayerNum) {
-	        				List<Integer> adjacentArchers = adjacentArcherIds(unitIds.get(1));
-	        				for (Integer adjacentArcher : adjacentArchers) {
-	        					Action attack = Action.createPrimitiveAttack(unitIds.get(1), adjacentArcher);
-	        					Map<Integer, Action> sec_unit_actions = new HashMap<Integer, Action>();
-	        					sec_unit_actions.put(unitIds.get(1), attack);
-	        					sec_unit_actions.putAll(unit_actions);
-	        					child_states.add(new GameStateChild(sec_unit_actions, createMoveAttackState(unit_locations[0], unit_locations[1], unitIds.get(0), unitIds.get(1), adjacentArcher, playerTurn)));
-	        				}
-	        			}
-	        			// Create combination of move and attack for the archers
-	        			else {
-	        				for (Integer footman : footmanIds) {
-	        					Action attack = Action.createPrimitiveAttack(unitIds.get(1), footman);
-	        					Map<Integer, Action> sec_unit_actions = new HashMap<Integer, Action>();
-	        					sec_unit_actions.put(unitIds.get(1), attack);
-	        					sec_unit_actions.putAll(unit_actions);
-	        					child_states.add(new GameStateChild(sec_unit_actions, createMoveAttackState(unit_locations[0], unit_locations[1], unitIds.get(0), unitIds.get(1), footman, playerTurn)));
-	        				}
-	        			}
-	        		}
-	        	}
-        	}
-        }
-        // Create states for unit 1 to attack while unit 2 moves or attacks
-        if (playerTurn == enemyPlayerNum || isArcherAdjacent(unitIds.get(0))) {
-        	List<Integer> targets = new LinkedList<Integer>();
-			//create a combination of move and attack for the footman
-			if (playerTurn == myPlayerNum) {
-				targets = adjacentArcherIds(unitIds.get(0));
-			}
-			else {
-				targets = footmanIds;
-			}
-			for (Integer target : targets) {
-				Action attack = Action.createPrimitiveAttack(unitIds.get(0), target);
-				Map<Integer, Action> unit_actions = new HashMap<Integer, Action>();
-				unit_actions.put(unitIds.get(0), attack);
-				//create simultaneous move or attack for unit 2 if alive
-				if (unitIds.size() == 2) {
-					// Unit 2 moves
-					for (Direction direction : Direction.values()) {
-						int newX = state.getUnit(unitIds.get(1)).getXPosition() + direction.xComponent();
-			        	int newY = state.getUnit(unitIds.get(1)).getYPosition() + direction.yComponent();
-			        	//If directional move is valid
-			        	if (state.inBounds(newX, newY) && !state.isUnitAt(newX, newY) && !state.isResourceAt(newX, newY)) {
-			        		Map<Integer, Action> sec_unit_actions = new HashMap<Integer, Action>();
-		                	// Adds the unit action to the second action map, so the first can be reused in other iterations
-		                	sec_unit_actions.put(unitIds.get(1), Action.createPrimitiveMove(unitIds.get(1), direction));
-		                	sec_unit_actions.putAll(unit_actions);
-		                	child_states.add(new GameStateChild(sec_unit_actions, createMoveAttackState(newX, newY, unitIds.get(1), unitIds.get(0), target, playerTurn)));
-			        	}
-					}
-					// Unite 2 attacks
-					if (playerTurn == enemyPlayerNum || isArcherAdjacent(unitIds.get(1))) {
-	        			//create a combination of attack and attack for the footman
-	        			if (playerTurn == myPlayerNum) {
-	        				List<Integer> adjacentArchers = adjacentArcherIds(unitIds.get(1));
-	        				for (Integer adjacentArcher : adjacentArchers) {
-	        					Action attack2 = Action.createPrimitiveAttack(unitIds.get(1), adjacentArcher);
-	        					Map<Integer, Action> sec_unit_actions = new HashMap<Integer, Action>();
-	        					sec_unit_actions.put(unitIds.get(1), attack2);
-	        					sec_unit_actions.putAll(unit_actions);
-	        					child_states.add(new GameStateChild(sec_unit_actions, createDoubleAttackState(unitIds, target, adjacentArcher, playerTurn)));
-	        				}
-	        			}
-	        			// Create combination of attack and attack for the archers
-	        			else {
-	        				for (Integer footman : footmanIds) {
-	        					Action attack2 = Action.createPrimitiveAttack(unitIds.get(1), footman);
-	        					Map<Integer, Action> sec_unit_actions = new HashMap<Integer, Action>();
-	        					sec_unit_actions.put(unitIds.get(1), attack2);
-	        					sec_unit_actions.putAll(unit_actions);
-	        					child_states.add(new GameStateChild(sec_unit_actions, createDoubleAttackState(unitIds, target, footman, playerTurn)));
-	        				}
-	        			}
-	        		}
-				}
-			}
-		}
-        return child_states;
+    public int maxMoves() {
+        return (ATTACK + board.unitIds.length) * (ATTACK + board.unitIds.length);
     }
-    
+
     /**
-     * Creates a State with only unit moves
-     * @param unit_loc the location of the units that may have moved [u1 x, u1 y] or [u1 x, u1 y, u2 x, u2 y]
-     * @param playerTurn  the playerNum of the player whose turn it is
-     * @author Previn Kumar
+     * Writes every move of the side to play into the array, in the order getChildren
+     * returns the children, and returns how many there are. A move is every combination of
+     * one option for each of the first two living units of the side, where an option is a
+     * move to a free cell or an attack. Footmen can attack the archers next to them and
+     * archers can attack any footman. Two units may not move onto the same cell.
+     *
+     * @param playerIdTurn 0 for the footmen, 1 for the archers
+     * @param moves At least maxMoves long
+     * @return The number of moves written
      */
-    private GameState createMoveState(int[] unit_locations, int playerTurn) {
-        StateBuilder sBuilder = new StateBuilder();
-        sBuilder.setSize(xExtent, yExtent);
-        sBuilder.setTurn(++turn);
-        // Adds all resource nodes to the new state
-        for (ResourceView resource : state.getAllResourceNodes()) {
-            sBuilder.addResource(buildResourceNode(resource));
-        }
-        int location_index = 0;
-        //if player 0's turn add footmen to the new unit_locations else add the archers to the new locations
-        if (playerTurn == 0) {
-            for (Integer footmanId : footmanIds) {
-                UnitView footman = state.getUnit(footmanId);
-                UnitTemplateView footmanTemplate = footman.getTemplateView();
-                Unit newFootman = new Unit(buildUnitTemplate(footmanTemplate, footmanId), footmanId);
-                newFootman.setHP(footman.getHP());
-                newFootman.setCargo(footman.getCargoType(), footman.getCargoAmount());
-                newFootman.setxPosition(unit_locations[location_index]);
-                newFootman.setyPosition(unit_locations[location_index + 1]);
-                location_index = location_index + 2;
-                sBuilder.addUnit(newFootman, newFootman.getxPosition(), newFootman.getyPosition());
+    public int getMoves(int playerIdTurn, int[] moves) {
+        int first = NONE;
+        int second = NONE;
+        for (int slot = playerIdTurn == 0 ? 0 : board.footmanCount; slot < (playerIdTurn == 0 ? board.footmanCount : board.unitIds.length); slot++) {
+            if (!isAlive(slot)) {
+                continue;
             }
-            for (Integer archerId : archerIds) {
-                UnitView archer = state.getUnit(archerId);
-                UnitTemplateView archerTemplate = archer.getTemplateView();
-                Unit newArcher = new Unit(buildUnitTemplate(archerTemplate, archerId), archerId);
-                newArcher.setHP(archer.getHP());
-                newArcher.setCargo(archer.getCargoType(), archer.getCargoAmount());
-                newArcher.setxPosition(archer.getXPosition());
-                newArcher.setyPosition(archer.getYPosition());
-                sBuilder.addUnit(newArcher, newArcher.getxPosition(), newArcher.getyPosition());
+            if (first == NONE) {
+                first = slot;
+            }
+            else {
+                second = slot;
+                break;
             }
         }
-        else {
-            for (Integer archerId : archerIds) {
-                UnitView archer = state.getUnit(archerId);
-                UnitTemplateView archerTemplate = archer.getTemplateView();
-                Unit newArcher = new Unit(buildUnitTemplate(archerTemplate, archerId), archerId);
-                newArcher.setHP(archer.getHP());
-                newArcher.setCargo(archer.getCargoType(), archer.getCargoAmount());
-                newArcher.setxPosition(unit_locations[location_index]);
-                newArcher.setyPosition(unit_locations[location_index + 1]);
-                sBuilder.addUnit(newArcher, newArcher.getxPosition(), newArcher.getyPosition());
-                location_index = location_index + 2;
+        if (first == NONE) {
+            return 0;
+        }
+        int count = 0;
+        long firstOptions = options(first);
+        if (second == NONE) {
+            for (long o = firstOptions; o != 0; o &= o - 1) {
+                moves[count++] = first | Long.numberOfTrailingZeros(o) << 8 | NONE << 16;
             }
-            for (Integer footmanId : footmanIds) {
-                UnitView footman = state.getUnit(footmanId);
-                UnitTemplateView footmanTemplate = footman.getTemplateView();
-                Unit newFootman = new Unit(buildUnitTemplate(footmanTemplate, footmanId), footmanId);
-                newFootman.setHP(footman.getHP());
-                newFootman.setCargo(footman.getCargoType(), footman.getCargoAmount());
-                newFootman.setxPosition(footman.getXPosition());
-                newFootman.setyPosition(footman.getYPosition());
-                sBuilder.addUnit(newFootman, newFootman.getxPosition(), newFootman.getyPosition());
+            return count;
+        }
+        long secondOptions = options(second);
+        for (long o = firstOptions; o != 0; o &= o - 1) {
+            int option = Long.numberOfTrailingZeros(o);
+            for (long s = secondOptions; s != 0; s &= s - 1) {
+                int secondOption = Long.numberOfTrailingZeros(s);
+                if (option < ATTACK && secondOption < ATTACK && sameCell(first, option, second, secondOption)) {
+                    continue;
+                }
+                moves[count++] = first | option << 8 | second << 16 | secondOption << 24;
             }
         }
-        return new GameState(sBuilder.build().getView(playerTurn));
+        return count;
     }
-    
+
     /**
-     * Creates a State with a unit move and attack
+     * Returns the options of a unit as a set of bits, its moves to free cells by direction
+     * followed by its attacks by target slot
      */
-    private GameState createMoveAttackState(int newX, int newY, int moveUnit, int attackUnit, int target, int playerTurn) {
-        StateBuilder sBuilder = new StateBuilder();
-        sBuilder.setSize(xExtent, yExtent);
-        sBuilder.setTurn(++turn);
-        // Adds all resource nodes to the new state
-        for (ResourceView resource : state.getAllResourceNodes()) {
-            sBuilder.addResource(buildResourceNode(resource));
+    private long options(int slot) {
+        long options = 0;
+        for (int d = 0; d < DIRECTIONS.length; d++) {
+            int newX = x(slot) + DIRECTIONS[d].xComponent();
+            int newY = y(slot) + DIRECTIONS[d].yComponent();
+            if (board.inBounds(newX, newY) && !board.isTree(newX, newY) && !isUnitAt(newX, newY)) {
+                options |= 1L << d;
+            }
         }
-        //if player 0's turn add footmen to the new unit_locations else add the archers to the new locations
-        if (playerTurn == 0) {
-            //Move footman
-            UnitView footman = state.getUnit(moveUnit);
-            UnitTemplateView footmanTemplate = footman.getTemplateView();
-            Unit newFootman = new Unit(buildUnitTemplate(footmanTemplate, moveUnit), moveUnit);
-            newFootman.setHP(footman.getHP());
-            newFootman.setCargo(footman.getCargoType(), footman.getCargoAmount());
-            newFootman.setxPosition(newX);
-            newFootman.setyPosition(newY);
-            sBuilder.addUnit(newFootman, newFootman.getxPosition(), newFootman.getyPosition());
-            
-            //Place attack footman in same location
-            UnitView footman2 = state.getUnit(attackUnit);
-            UnitTemplateView footmanTemplate2 = footman2.getTemplateView();
-            Unit newFootman2 = new Unit(buildUnitTemplate(footmanTemplate2, attackUnit), attackUnit);
-            newFootman2.setHP(footman2.getHP());
-            newFootman2.setCargo(footman2.getCargoType(), footman2.getCargoAmount());
-            newFootman2.setxPosition(footman2.getXPosition());
-            newFootman2.setyPosition(footman2.getYPosition());
-            sBuilder.addUnit(newFootman2, newFootman2.getxPosition(), newFootman2.getyPosition());
-            
-            //Pace archers with lowered health in same position
-            for (Integer archerId : archerIds) {
-                UnitView archer = state.getUnit(archerId);
-                UnitTemplateView archerTemplate = archer.getTemplateView();
-                Unit newArcher = new Unit(buildUnitTemplate(archerTemplate, archerId), archerId);
-                if (archerId == target) {
-                	newArcher.setHP(archer.getHP() - 10);
-                }
-                else {
-                	newArcher.setHP(archer.getHP());
-                }
-                if (newArcher.getCurrentHealth() > 0) {
-	                newArcher.setCargo(archer.getCargoType(), archer.getCargoAmount());
-	                newArcher.setxPosition(archer.getXPosition());
-	                newArcher.setyPosition(archer.getYPosition());
-	                sBuilder.addUnit(newArcher, newArcher.getxPosition(), newArcher.getyPosition());
+        if (board.isArcher(slot)) {
+            for (int footman = 0; footman < board.footmanCount; footman++) {
+                if (isAlive(footman)) {
+                    options |= 1L << (ATTACK + footman);
                 }
             }
         }
         else {
-        	//Move archer
-            UnitView archer = state.getUnit(moveUnit);
-            UnitTemplateView archerTemplate = archer.getTemplateView();
-            Unit newArcher = new Unit(buildUnitTemplate(archerTemplate, moveUnit), moveUnit);
-            newArcher.setHP(archer.getHP());
-            newArcher.setCargo(archer.getCargoType(), archer.getCargoAmount());
-            newArcher.setxPosition(newX);
-            newArcher.setyPosition(newY);
-            sBuilder.addUnit(newArcher, newArcher.getxPosition(), newArcher.getyPosition());
-            
-            //Place attack archer in same location
-            UnitView archer2 = state.getUnit(attackUnit);
-            UnitTemplateView archerTemplate2 = archer2.getTemplateView();
-            Unit newArcher2 = new Unit(buildUnitTemplate(archerTemplate2, attackUnit), attackUnit);
-            newArcher2.setHP(archer2.getHP());
-            newArcher2.setCargo(archer2.getCargoType(), archer2.getCargoAmount());
-            newArcher2.setxPosition(archer2.getXPosition());
-            newArcher2.setyPosition(archer2.getYPosition());
-            sBuilder.addUnit(newArcher2, newArcher2.getxPosition(), newArcher2.getyPosition());
-            
-            //Place footman with lowered health in the same position
-            for (Integer footmanId : footmanIds) {
-                UnitView footman = state.getUnit(footmanId);
-                UnitTemplateView footmanTemplate = footman.getTemplateView();
-                Unit newFootman = new Unit(buildUnitTemplate(footmanTemplate, footmanId), footmanId);
-                if (footmanId == target) {
-                	newFootman.setHP(footman.getHP() - 10);
-                }
-                else {
-                	newFootman.setHP(footman.getHP());
-                }
-                if (newFootman.getCurrentHealth() > 0) {
-	                newFootman.setCargo(footman.getCargoType(), footman.getCargoAmount());
-	                newFootman.setxPosition(footman.getXPosition());
-	                newFootman.setyPosition(footman.getYPosition());
-	                sBuilder.addUnit(newFootman, newFootman.getxPosition(), newFootman.getyPosition());
+            for (int archer = board.footmanCount; archer < board.unitIds.length; archer++) {
+                if (isAlive(archer) && isAdjacent(slot, archer)) {
+                    options |= 1L << (ATTACK + archer);
                 }
             }
         }
-        return new GameState(sBuilder.build().getView(playerTurn));
+        return options;
     }
-    
+
     /**
-     * Creates a State with a unit move and attack
+     * Returns the child a move from getMoves leads to, with the units' actions. The unit
+     * array is copied and the move is played on the copy.
      */
-    private GameState createDoubleAttackState(List<Integer> unitIds, int target1, int target2, int playerTurn) {
-        StateBuilder sBuilder = new StateBuilder();
-        sBuilder.setSize(xExtent, yExtent);
-        sBuilder.setTurn(++turn);
-        // Adds all resource nodes to the new state
-        for (ResourceView resource : state.getAllResourceNodes()) {
-            sBuilder.addResource(buildResourceNode(resource));
-        }
-        //Place attacking units in the same location with same health
-        for (Integer unitId : unitIds) {
-            UnitView unit = state.getUnit(unitId);
-            UnitTemplateView unitTemplate = unit.getTemplateView();
-            Unit newUnit = new Unit(buildUnitTemplate(unitTemplate, unitId), unitId);
-        	newUnit.setHP(unit.getHP());
-            newUnit.setCargo(unit.getCargoType(), unit.getCargoAmount());
-            newUnit.setxPosition(unit.getXPosition());
-            newUnit.setyPosition(unit.getYPosition());
-            sBuilder.addUnit(newUnit, newUnit.getxPosition(), newUnit.getyPosition());
+    public GameStateChild getChild(int move) {
+        GameState child = new GameState(board, units.clone(), zobristKey);
+        Map<Integer, Action> actions = new HashMap<Integer, Action>(4);
+        child.play(move, actions);
+        return new GameStateChild(actions, child);
+    }
+
+    /**
+     * Returns a copy of this state for a search to make and unmake moves on. Moves are
+     * played on the copy's own unit array and taken back from an undo stack, so searching
+     * it allocates nothing. Each search thread needs its own copy.
+     */
+    public GameState copyForSearch() {
+        GameState copy = new GameState(board, units.clone(), zobristKey);
+        copy.undoEntries = new int[64];
+        copy.undoMarks = new int[16];
+        copy.undoKeys = new long[16];
+        return copy;
+    }
+
+    /**
+     * Plays a move from getMoves on this state, which must be a copyForSearch board
+     */
+    public void makeMove(int move) {
+        if (movesMade == undoKeys.length) {
+            undoMarks = Arrays.copyOf(undoMarks, 2 * movesMade);
+            undoKeys = Arrays.copyOf(undoKeys, 2 * movesMade);
         }
-        List<Integer> targetIds = new LinkedList<Integer>();
-        if (target1 != target2) {
-        	targetIds.add(target1);
-        	targetIds.add(target2);
+        undoMarks[movesMade] = undoTop;
+        undoKeys[movesMade] = zobristKey;
+        movesMade++;
+        play(move, null);
+    }
+
+    /**
+     * Takes back the last move made
+     */
+    public void unmakeMove() {
+        movesMade--;
+        int mark = undoMarks[movesMade];
+        while (undoTop > mark) {
+            undoTop -= 2;
+            units[undoEntries[undoTop]] = undoEntries[undoTop + 1];
         }
-        else {
-        	targetIds.add(target1);
+        zobristKey = undoKeys[movesMade];
+    }
+
+    /**
+     * Carries out each moving unit's option and passes the turn, putting the units'
+     * actions in the map if there is one
+     */
+    private void play(int move, Map<Integer, Action> actions) {
+        zobristKey ^= Zobrist.ARCHERS_TO_MOVE;
+        apply(move & 0xFF, (move >>> 8) & 0xFF, actions);
+        int second = (move >>> 16) & 0xFF;
+        if (second != NONE) {
+            apply(second, move >>> 24, actions);
         }
-        //Place targets in same location with reduced health
-        for (Integer targetId : targetIds) {
-        	UnitView target = state.getUnit(targetId);
-            UnitTemplateView unitTemplate = target.getTemplateView();
-            Unit newUnit = new Unit(buildUnitTemplate(unitTemplate, targetId), targetId);
-        	newUnit.setHP(target.getHP() - 10);
-        	if (newUnit.getCurrentHealth() > 0) {
-	            newUnit.setCargo(target.getCargoType(), target.getCargoAmount());
-	            newUnit.setxPosition(target.getXPosition());
-	            newUnit.setyPosition(target.getYPosition());
-	            sBuilder.addUnit(newUnit, newUnit.getxPosition(), newUnit.getyPosition());
-        	}
+    }
+
+    /**
+     * Carries out one unit's option, writing the moved position or lowered HP over the
+     * unit array and updating the hash with the same changes
+     */
+    private void apply(int slot, int option, Map<Integer, Action> actions) {
+        int id = board.unitIds[slot];
+        if (option < ATTACK) {
+            int newX = x(slot) + DIRECTIONS[option].xComponent();
+            int newY = y(slot) + DIRECTIONS[option].yComponent();
+            zobristKey ^= Zobrist.position(id, x(slot), y(slot)) ^ Zobrist.position(id, newX, newY);
+            set(3 * slot, newX);
+            set(3 * slot + 1, newY);
+            if (actions != null) {
+                actions.put(id, board.moves[slot][option]);
+            }
+            return;
         }
-        //Add untargetted archer if there is one
-        if (playerTurn == myPlayerNum && targetIds.size() != archerIds.size()) {
-        	int unitId = targetIds.get(0) == archerIds.get(0) ? archerIds.get(1) : archerIds.get(0);
-        	UnitView unit = state.getUnit(unitId);
-            UnitTemplateView unitTemplate = unit.getTemplateView();
-            Unit newUnit = new Unit(buildUnitTemplate(unitTemplate, unitId), unitId);
-        	newUnit.setHP(unit.getHP());
-            newUnit.setCargo(unit.getCargoType(), unit.getCargoAmount());
-            newUnit.setxPosition(unit.getXPosition());
-            newUnit.setyPosition(unit.getYPosition());
-            sBuilder.addUnit(newUnit, newUnit.getxPosition(), newUnit.getyPosition());
+        int target = option - ATTACK;
+        int targetId = board.unitIds[target];
+        int hp = hp(target);
+        // both units may attack the same target, and the first attack may already have killed it
+        if (hp > 0) {
+            zobristKey ^= Zobrist.health(targetId, hp);
+            hp -= DAMAGE;
+            zobristKey ^= hp > 0 ? Zobrist.health(targetId, hp) : Zobrist.position(targetId, x(target), y(target));
+            set(3 * target + 2, hp);
         }
-        //Add untargetted footman if there is one
-        else if (playerTurn == enemyPlayerNum && targetIds.size() != footmanIds.size()) {
-        	int unitId = targetIds.get(0) == footmanIds.get(0) ? footmanIds.get(1) : footmanIds.get(0);
-        	UnitView unit = state.getUnit(unitId);
-            UnitTemplateView unitTemplate = unit.getTemplateView();
-            Unit newUnit = new Unit(buildUnitTemplate(unitTemplate, unitId), unitId);
-        	newUnit.setHP(unit.getHP());
-            newUnit.setCargo(unit.getCargoType(), unit.getCargoAmount());
-            newUnit.setxPosition(unit.getXPosition());
-            newUnit.setyPosition(unit.getYPosition());
-            sBuilder.addUnit(newUnit, newUnit.getxPosition(), newUnit.getyPosition());
+        if (actions != null) {
+            actions.put(id, board.attacks[slot][target]);
         }
-        return new GameState(sBuilder.build().getView(playerTurn));
     }
-    
+
     /**
-     * Builds a ResourceNode from a ResourceView
+     * Writes an entry of the unit array, first saving the old value if moves are to be unmade
      */
-    private ResourceNode buildResourceNode(ResourceView view) {
-        return new ResourceNode(view.getType(), view.getXPosition(), view.getYPosition(), view.getAmountRemaining(), view.getID());
+    private void set(int index, int value) {
+        if (undoEntries != null) {
+            if (undoTop == undoEntries.length) {
+                undoEntries = Arrays.copyOf(undoEntries, 2 * undoTop);
+            }
+            undoEntries[undoTop++] = index;
+            undoEntries[undoTop++] = units[index];
+        }
+        units[index] = value;
     }
-    
-    
-    
+
     /**
-     * Create a UnitTemplate from a UnitTemplateView
+     * Returns true if two units' moves would end on the same cell
      */
-    private UnitTemplate buildUnitTemplate(UnitTemplateView view, int id) {
-        UnitTemplate newTemplate = new UnitTemplate(id);
-        newTemplate.setArmor(view.getArmor());
-        newTemplate.setBaseHealth(view.getBaseHealth());
-        newTemplate.setBasicAttack(view.getBasicAttack());
-        newTemplate.setDurationAttack(view.getDurationAttack());
-        newTemplate.setCanMove(true);
-        newTemplate.setDurationMove(view.getDurationMove());
-        newTemplate.setFoodProvided(view.getFoodProvided());
-        newTemplate.setFoodCost(view.getFoodCost());
-        newTemplate.setName(view.getName());
-        newTemplate.setPiercingAttack(view.getPiercingAttack());
-        newTemplate.setPlayer(view.getPlayer());
-        newTemplate.setRange(view.getRange());
-        newTemplate.setSightRange(view.getSightRange());
-        newTemplate.setCanAcceptGold(view.canAcceptGold());
-        newTemplate.setCanAcceptWood(view.canAcceptWood());
-        newTemplate.setCanBuild(view.canBuild());
-        newTemplate.setCanGather(view.canGather());
-        newTemplate.setCharacter(view.getCharacter());
-        newTemplate.setTimeCost(view.getTimeCost());
-        return newTemplate;
+    private boolean sameCell(int slot, int direction, int other, int otherDirection) {
+        return x(slot) + DIRECTIONS[direction].xComponent() == x(other) + DIRECTIONS[otherDirection].xComponent()
+                && y(slot) + DIRECTIONS[direction].yComponent() == y(other) + DIRECTIONS[otherDirection].yComponent();
     }
-    
+
     /**
-     * Returns true if either of the units are adjacent to an archer
+     * Returns true if a living unit stands on the cell
      */
-    public boolean isArcherAdjacent(Integer unit) {
-    	int footmanx = state.getUnit(unit).getXPosition();
-    	int footmany = state.getUnit(unit).getYPosition();
-    	int[] archerx = new int[2];
-    	int[] archery = new int[2];
-    	int index = 0;
-    	for (int id : archerIds) {
-    		archerx[index] = state.getUnit(id).getXPosition();
-    		archery[index] = state.getUnit(id).getYPosition();
-    		index++;
-    	}
-    	for (int i = 0; i < archerx.length; i++) {
-    		if (footmanx == archerx[i] && (footmany == archery[i] + 1 || footmany == archery[i] - 1)) {
-    			return true;
-    		}
-    		if (footmany == archery[i] && (footmanx == archerx[i] + 1 || footmanx == archerx[i] - 1)) {
-    			return true;
-    		}
-    	}
-    	return false;
+    private boolean isUnitAt(int x, int y) {
+        for (int slot = 0; slot < board.unitIds.length; slot++) {
+            if (isAlive(slot) && x(slot) == x && y(slot) == y) {
+                return true;
+            }
+        }
+        return false;
     }
-    
+
     /**
-     * Returns a List of the IDs of an adjacent archers
+     * Returns true if the units are next to each other, not counting diagonals
      */
-    public List<Integer> adjacentArcherIds(Integer unit) {
-    	int footmanx = state.getUnit(unit).getXPosition();
-    	int footmany = state.getUnit(unit).getYPosition();
-    	int[] archerx = new int[2];
-    	int[] archery = new int[2];
-    	List<Integer> archerId = new LinkedList<Integer>();
-    	int index = 0;
-    	for (int id : archerIds) {
-    		archerx[index] = state.getUnit(id).getXPosition();
-    		archery[index] = state.getUnit(id).getYPosition();
-    		index++;
-    	}
-    	for (int i = 0; i < archerx.length; i++) {
-    		if (footmanx == archerx[i] && (footmany == archery[i] + 1 || footmany == archery[i] - 1)) {
-    			archerId.add(archerIds.get(i));
-    		}
-    		if (footmany == archery[i] && (footmanx == archerx[i] + 1 || footmanx == archerx[i] - 1)) {
-    			archerId.add(archerIds.get(i));
-    		}
-    	}
-    	return archerId;
+    private boolean isAdjacent(int slot, int other) {
+        return Math.abs(x(slot) - x(other)) + Math.abs(y(slot) - y(other)) == 1;
+    }
+
+    private int x(int slot) {
+        return units[3 * slot];
+    }
+
+    private int y(int slot) {
+        return units[3 * slot + 1];
+    }
+
+    private int hp(int slot) {
+        return units[3 * slot + 2];
+    }
+
+    private boolean isAlive(int slot) {
+        return units[3 * slot + 2] > 0;
     }
 
     /**
      * Returns true if the archers are dead
      */
     public boolean areArchersDead() {
-        return archerIds.size() == 0;
+        for (int slot = board.footmanCount; slot < board.unitIds.length; slot++) {
+            if (isAlive(slot)) {
+                return false;
+            }
+        }
+        return true;
     }
 }
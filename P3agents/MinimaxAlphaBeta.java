@@ -7,12 +7,31 @@ import edu.cwru.sepia.environment.model.state.State;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class MinimaxAlphaBeta extends Agent {
     
+    // 2^20 entries of three longs each, 24MB
+    private static final int TABLE_BITS = 20;
+    private static final int NO_MOVE = -1;
+    
     private final int numPlys;
+    private final long turnBudget; // nsecs of search per turn, 0 always searches to numPlys
+    private long deadline; // System.nanoTime at which the current iteration gives up
+    private volatile boolean outOfTime;
+    // number of threads searching each turn, the agent's own and threads - 1 helpers
+    private final int threads;
+    private ExecutorService helpers; // started by the first search that needs it, stopped in terminalStep
+    private volatile boolean iterationOver; // set once the agent's thread finishes an iteration
+    // kept between turns, the positions searched last turn are often reached again
+    private final TranspositionTable transpositionTable = new TranspositionTable(TABLE_BITS);
     
     public MinimaxAlphaBeta(int playernum, String[] args)
     {
@@ -25,6 +44,27 @@ public class MinimaxAlphaBeta extends Agent {
         }
         
         numPlys = Integer.parseInt(args[0]);
+        // optional second argument, the milliseconds each turn may search for
+        turnBudget = args.length > 1 ? Long.parseLong(args[1]) * 1000000 : 0;
+        // optional third argument, the number of threads to search with
+        threads = args.length > 2 ? Math.max(1, Integer.parseInt(args[2])) : 1;
+    }
+    
+    /**
+     * Creates the pool of helper threads. The threads live until terminalStep shuts the pool
+     * down at the end of the episode, and as daemon threads they never keep the JVM running.
+     * The method is static so the threads do not hold on to the agent and its table.
+     */
+    private static ExecutorService createHelpers(int count) {
+        return Executors.newFixedThreadPool(count, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MinimaxHelper");
+                // a helper left waiting must not keep the game from exiting
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
     
     @Override
@@ -34,6 +74,7 @@ public class MinimaxAlphaBeta extends Agent {
     
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+        transpositionTable.newSearch();
         GameStateChild bestChild = alphaBetaSearch(new GameStateChild(newstate),
                                                    numPlys,
                                                    Double.NEGATIVE_INFINITY,
@@ -44,7 +85,11 @@ public class MinimaxAlphaBeta extends Agent {
     
     @Override
     public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
-        
+        // every helper finished with the last search, so the threads are idle
+        if (helpers != null) {
+            helpers.shutdown();
+            helpers = null;
+        }
     }
     
     @Override
@@ -66,8 +111,27 @@ public class MinimaxAlphaBeta extends Agent {
      * Try to keep the logic in this function as abstract as possible (i.e. move as much SEPIA specific
      * code into other functions and methods)
      *
+     * The search deepens one ply at a time up to depth. Every iteration stores its best moves in
+     * the transposition table, so the next one searches the previous principal variation first
+     * and cuts off most of the rest early. With a turn budget an iteration that runs past it is
+     * abandoned and the move of the deepest completed one is returned. The first ply is always
+     * searched to the end so there is a move to return.
+     *
+     * Below the root no states are built. The search plays its moves on one copy of the root
+     * state and takes them back on the way up, and only the best child is built at the end.
+     *
+     * With more than one thread the search is a lazy SMP search. Helper threads search every
+     * iteration from the second on alongside the agent's own thread, each on its own copy of
+     * the state and starting from a different root move, and share what they find through
+     * the transposition table. Only the agent's thread picks the move. The helpers search the
+     * same depth and are stopped when it finishes, but they reach positions in another order.
+     * A helper can store a transposed position from a shallower ply, searched deeper than the
+     * agent's thread would search it, before that thread gets there, and the table cutoff
+     * takes any entry at least as deep as it needs. So the move and value can differ from a
+     * serial search of the same depth, though they come from searches at least that deep.
+     *
      * @param node The action and state to search from
-     * @param depth The remaining number of plys under this node
+     * @param depth The largest number of plys to search under this node
      * @param alpha The current best value for the maximizing node from this node to the root
      * @param beta The current best value for the minimizing node from this node to the root
      * @return The best child of this node with updated values
@@ -76,81 +140,333 @@ public class MinimaxAlphaBeta extends Agent {
      */
     public GameStateChild alphaBetaSearch(GameStateChild node, int depth, double alpha, double beta)
     {
-        return maxValue(node, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        long startTime = System.nanoTime();
+        Search search = new Search(node.state, depth, 0);
+        deadline = Long.MAX_VALUE;
+        outOfTime = false;
+        double value = search.maxValue(0, 1, alpha, beta);
+        int bestMove = search.rootMove;
+        if (turnBudget > 0) {
+            deadline = startTime + turnBudget;
+        }
+        for (int plys = 2; plys <= depth; plys++) {
+            iterationOver = false;
+            List<Future<?>> helping = startHelpers(node.state, plys, alpha, beta);
+            double v = search.maxValue(0, plys, alpha, beta);
+            iterationOver = true;
+            waitFor(helping);
+            if (outOfTime) {
+                break;
+            }
+            value = v;
+            bestMove = search.rootMove;
+        }
+        // no moves, so there is no child to return
+        if (bestMove == NO_MOVE) {
+            return node;
+        }
+        GameStateChild bestChild = node.state.getChild(bestMove);
+        bestChild.state.setSavedUtility(value);
+        return bestChild;
     }
     
     /**
-     * Recursive function to return the child with the max utility
-     * @param node The action and state to search from
-     * @param depth The remaining number of plys under this node
-     * @param alpha The current best value for the maximizing node from this node to the root
-     * @param beta The current best value for the minimizing node from this node to the root
-     * @return The max child of this node with updated values
-     * @author Previn Kumar
+     * Starts a helper search of one iteration on each helper thread
      */
-    private GameStateChild maxValue(GameStateChild node, int depth, double alpha, double beta) {
-        GameState state = node.state;
-        // returns node if at the depth limit or a goal
-        if (depth <= 0 || state.areArchersDead()) {
-            node.state.setSavedUtility(state.getUtility());
-            return node;
+    private List<Future<?>> startHelpers(GameState state, final int plys, final double alpha, final double beta) {
+        List<Future<?>> helping = new ArrayList<Future<?>>();
+        if (threads > 1 && helpers == null) {
+            helpers = createHelpers(threads - 1);
         }
-        double v = Double.NEGATIVE_INFINITY;
-        List<GameStateChild> children = orderChildrenWithHeuristics(state.getChildren(0));
-        GameStateChild best_child = null;
-        // find the child with the best utility
-        for (GameStateChild child : children) {
-            GameStateChild min_child = minValue(child, --depth, alpha, beta);
-            // Pick a child with maximum utility
-            if (min_child.state.getSavedUtility() > v) {
-                v = min_child.state.getSavedUtility();
-                best_child = child;
-                best_child.state.setSavedUtility(v);
-                // prunes the rest of the nodes if >= beta
-                if (v >= beta) {
-                    return best_child;
+        for (int helper = 1; helper < threads; helper++) {
+            final Search search = new Search(state, plys, helper);
+            helping.add(helpers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        search.maxValue(0, plys, alpha, beta);
+                    }
+                    catch (RuntimeException e) {
+                        // the agent's thread searches on without this helper
+                        System.err.println("Helper search failed: " + e);
+                    }
                 }
-                alpha = v > alpha ? v : alpha;
+            }));
+        }
+        return helping;
+    }
+    
+    /**
+     * Waits for the helpers of an iteration to stop, so none of them is still writing to the
+     * table when the next iteration starts
+     */
+    private void waitFor(List<Future<?>> helping) {
+        for (Future<?> helper : helping) {
+            try {
+                helper.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                System.err.println("Helper search failed: " + e.getCause());
             }
         }
-        return best_child;
     }
     
     /**
-     * Recursive function to return the child with the min utility
-     * @param node The action and state to search from
-     * @param depth The remaining number of plys under this node
-     * @param alpha The current best value for the maximizing node from this node to the root
-     * @param beta The current best value for the minimizing node from this node to the root
-     * @return The min child of this node with updated values
-     * @author Previn Kumar
+     * Returns true once the turn budget has run out. The nodes searched from then on only
+     * return, and their values are thrown away with the rest of the iteration.
      */
-    private GameStateChild minValue(GameStateChild node, int depth, double alpha, double beta) {
-        GameState state = node.state;
-        // returns node if at the depth limit or a goal
-        if (depth <= 0 || state.areArchersDead()) {
-            node.state.setSavedUtility(state.getUtility());
-            return node;
+    private boolean isOutOfTime() {
+        if (!outOfTime && System.nanoTime() > deadline) {
+            outOfTime = true;
         }
-        double v = Double.POSITIVE_INFINITY;
-        List<GameStateChild> children = orderChildrenWithHeuristics(state.getChildren(1));
-        GameStateChild best_child = null;
-        // find the child with the best utility
-        for (GameStateChild child : children) {
-            GameStateChild max_child = maxValue(child, --depth, alpha, beta);
-            // Pick the child with minimum utility
-            if (max_child.state.getSavedUtility() < v) {
-                v = max_child.state.getSavedUtility();
-                best_child = child;
-                best_child.state.setSavedUtility(v);
-                // prunes the rest of the nodes if <= beta
-                if (v <= alpha) {
-                    return best_child;
+        return outOfTime;
+    }
+    
+    /**
+     * One thread's search, with the copy of the state it makes and unmakes its moves on and
+     * the move buffers of every ply, kept for the whole search so no node allocates
+     */
+    private class Search {
+        
+        private final GameState board;
+        // the moves of the node at each ply from the root, with the utility and hash of the
+        // state each leads to
+        private final int[][] moves;
+        private final double[][] moveUtilities;
+        private final long[][] moveKeys;
+        private final int helper; // 0 for the agent's own thread
+        // the table entry of the node being searched, read before searching its children
+        private final TranspositionTable.Entry entry = new TranspositionTable.Entry();
+        private int rootMove = NO_MOVE; // best move found at the root by the last maxValue call
+        private boolean stopped;
+        
+        Search(GameState state, int depth, int helper)
+        {
+            this.board = state.copyForSearch();
+            int plys = Math.max(depth, 1);
+            this.moves = new int[plys][board.maxMoves()];
+            this.moveUtilities = new double[plys][board.maxMoves()];
+            this.moveKeys = new long[plys][board.maxMoves()];
+            this.helper = helper;
+        }
+        
+        /**
+         * Returns true once the turn budget has run out or, for a helper, once the agent's
+         * thread has finished the iteration. The nodes searched from then on only return,
+         * and their values are thrown away.
+         */
+        private boolean isStopped() {
+            if (!stopped && (isOutOfTime() || (helper > 0 && iterationOver))) {
+                stopped = true;
+            }
+            return stopped;
+        }
+        
+        /**
+         * Recursive function to return the max utility of the board's position, with the
+         * footmen to move
+         *
+         * Positions are looked up in the transposition table first. An entry searched at least
+         * as deep ends the search of the node if its value is exact or its bound already falls
+         * outside the window, and otherwise its best move is searched first. The node is stored
+         * afterwards, as an upper bound if no child got above alpha and as a lower bound if the
+         * search was cut off at beta.
+         *
+         * @param ply The number of moves made on the board since the root, whose best move is
+         * left in rootMove
+         * @param depth The remaining number of plys under this node
+         * @param alpha The current best value for the maximizing node from this node to the root
+         * @param beta The current best value for the minimizing node from this node to the root
+         * @return The max utility of this node
+         * @author Previn Kumar
+         */
+        private double maxValue(int ply, int depth, double alpha, double beta) {
+            if (ply == 0) {
+                rootMove = NO_MOVE;
+            }
+            // returns the utility if at the depth limit or a goal
+            if (depth <= 0 || board.areArchersDead()) {
+                return board.getUtility();
+            }
+            if (isStopped()) {
+                return 0;
+            }
+            long key = board.getZobristKey();
+            transpositionTable.probe(key, entry);
+            // the root must find a move, so it is always searched
+            if (ply > 0 && isTableCutoff(entry, depth, alpha, beta)) {
+                return entry.value;
+            }
+            double alphaAtStart = alpha;
+            double v = Double.NEGATIVE_INFINITY;
+            int count = orderMoves(ply, 0);
+            // a helper starts at a different root move than the other threads, so they
+            // fill the table with different parts of the tree
+            int first = ply == 0 ? helper % Math.max(count, 1) : 0;
+            int best = -1;
+            // find the move with the best utility
+            for (int n = 0; n < count; n++) {
+                int i = (first + n) % count;
+                board.makeMove(moves[ply][i]);
+                double min = minValue(ply + 1, depth - 1, alpha, beta);
+                board.unmakeMove();
+                // Pick a move with maximum utility
+                if (min > v) {
+                    v = min;
+                    best = i;
+                    if (ply == 0) {
+                        rootMove = moves[ply][i];
+                    }
+                    // prunes the rest of the moves if >= beta
+                    if (v >= beta) {
+                        break;
+                    }
+                    alpha = v > alpha ? v : alpha;
                 }
-                beta = v < beta ? v : beta;
             }
+            // no moves left, so the node is scored like a leaf
+            if (best == -1) {
+                return board.getUtility();
+            }
+            // a node cut short by the budget or the end of the iteration has no value worth keeping
+            if (stopped) {
+                return v;
+            }
+            // the root's entry orders the next iteration's root moves, which only the agent's thread may do
+            if (helper > 0 && ply == 0) {
+                return v;
+            }
+            int bound = v <= alphaAtStart ? TranspositionTable.UPPER : v >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            transpositionTable.store(key, depth, bound, v, moveKeys[ply][best]);
+            return v;
+        }
+    
+        /**
+         * Recursive function to return the min utility of the board's position, with the
+         * archers to move
+         * @param ply The number of moves made on the board since the root
+         * @param depth The remaining number of plys under this node
+         * @param alpha The current best value for the maximizing node from this node to the root
+         * @param beta The current best value for the minimizing node from this node to the root
+         * @return The min utility of this node
+         * @author Previn Kumar
+         */
+        private double minValue(int ply, int depth, double alpha, double beta) {
+            // returns the utility if at the depth limit or a goal
+            if (depth <= 0 || board.areArchersDead()) {
+                return board.getUtility();
+            }
+            if (isStopped()) {
+                return 0;
+            }
+            long key = board.getZobristKey();
+            transpositionTable.probe(key, entry);
+            if (isTableCutoff(entry, depth, alpha, beta)) {
+                return entry.value;
+            }
+            double betaAtStart = beta;
+            double v = Double.POSITIVE_INFINITY;
+            int count = orderMoves(ply, 1);
+            int best = -1;
+            // find the move with the best utility
+            for (int i = 0; i < count; i++) {
+                board.makeMove(moves[ply][i]);
+                double max = maxValue(ply + 1, depth - 1, alpha, beta);
+                board.unmakeMove();
+                // Pick the move with minimum utility
+                if (max < v) {
+                    v = max;
+                    best = i;
+                    // prunes the rest of the moves if <= alpha
+                    if (v <= alpha) {
+                        break;
+                    }
+                    beta = v < beta ? v : beta;
+                }
+            }
+            // no moves left, so the node is scored like a leaf
+            if (best == -1) {
+                return board.getUtility();
+            }
+            // a node cut short by the budget or the end of the iteration has no value worth keeping
+            if (stopped) {
+                return v;
+            }
+            int bound = v >= betaAtStart ? TranspositionTable.LOWER : v <= alpha ? TranspositionTable.UPPER : TranspositionTable.EXACT;
+            transpositionTable.store(key, depth, bound, v, moveKeys[ply][best]);
+            return v;
+        }
+    
+        /**
+         * Writes the moves of the node at a ply into its buffers, ordered like
+         * orderChildrenWithHeuristics orders children, then moves the best move stored in the
+         * table entry, if there is one, to the front. Each move is made and unmade once to
+         * score it and to get its hash.
+         *
+         * @return The number of moves
+         */
+        private int orderMoves(int ply, int playerIdTurn) {
+            int[] plyMoves = moves[ply];
+            double[] utilities = moveUtilities[ply];
+            long[] keys = moveKeys[ply];
+            int count = board.getMoves(playerIdTurn, plyMoves);
+            for (int i = 0; i < count; i++) {
+                board.makeMove(plyMoves[i]);
+                utilities[i] = board.getUtility();
+                keys[i] = board.getZobristKey();
+                board.unmakeMove();
+            }
+            // insertion sort, highest utility first and moves of equal utility in the order generated
+            for (int i = 1; i < count; i++) {
+                int j = i;
+                while (j > 0 && utilities[i] > utilities[j - 1]) {
+                    j--;
+                }
+                moveTo(ply, i, j);
+            }
+            for (int i = 0; i < count; i++) {
+                if (entry.isBestChild(keys[i])) {
+                    moveTo(ply, i, 0);
+                    break;
+                }
+            }
+            return count;
+        }
+    
+        /**
+         * Moves the move at index from to index to of a ply's buffers, shifting the moves in
+         * between up by one
+         */
+        private void moveTo(int ply, int from, int to) {
+            int move = moves[ply][from];
+            double utility = moveUtilities[ply][from];
+            long key = moveKeys[ply][from];
+            System.arraycopy(moves[ply], to, moves[ply], to + 1, from - to);
+            System.arraycopy(moveUtilities[ply], to, moveUtilities[ply], to + 1, from - to);
+            System.arraycopy(moveKeys[ply], to, moveKeys[ply], to + 1, from - to);
+            moves[ply][to] = move;
+            moveUtilities[ply][to] = utility;
+            moveKeys[ply][to] = key;
+        }
+    }
+    
+    /**
+     * Returns true if a table entry searched at least as deep settles the node's value
+     * within the alpha beta window
+     */
+    private boolean isTableCutoff(TranspositionTable.Entry entry, int depth, double alpha, double beta) {
+        if (entry.depth < depth) {
+            return false;
         }
-        return best_child;
+        double value = entry.value;
+        int bound = entry.bound;
+        return bound == TranspositionTable.EXACT
+                || (bound == TranspositionTable.LOWER && value >= beta)
+                || (bound == TranspositionTable.UPPER && value <= alpha);
     }
     
     /**
@@ -0,0 +1,107 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size transposition table for the alpha beta search.
+ *
+ * Different orders of the same footman and archer moves reach the same position, and
+ * without a table every one of them is searched again. An entry keeps the depth a
+ * position was searched to, whether its value is exact or only a bound from a cutoff, the
+ * value and the best move. The value is kept whole as a double, so a value read from the
+ * table is the same one a search of the position returns. Everything else is packed into
+ * one long:
+ *
+ *   bits  0-7   depth
+ *   bits  8-9   bound type
+ *   bits 10-15  age, the number of the search that stored it
+ *   bits 16-63  best move, the low 48 bits of the best child's hash
+ *
+ * Each slot holds the value, that long and the position's hash xored with both. A reader
+ * that gets a slot halfway through another thread's write finds that the three words no
+ * longer xor to its hash and treats it as a miss, so there are no locks. An entry is
+ * replaced by one searched at least as deep, or by anything once it is left over from an
+ * older search.
+ */
+public class TranspositionTable {
+
+    public static final int EXACT = 0;
+    public static final int LOWER = 1; // the value is at least this
+    public static final int UPPER = 2; // the value is at most this
+
+    /**
+     * What a probe found, filled in place so a search can probe every node without
+     * allocating. Each search thread needs its own.
+     */
+    public static final class Entry {
+        public double value;
+        public int depth; // 0 when the position is not in the table
+        public int bound;
+        private long bestChild = -1; // the best move's 48 bits never equal -1, so no child matches
+
+        /**
+         * Returns true if a child's hash matches the best move stored in the entry
+         */
+        public boolean isBestChild(long childHash) {
+            return bestChild == (childHash & 0xFFFFFFFFFFFFL);
+        }
+    }
+
+    private final AtomicLongArray slots; // hash ^ value ^ data, value, then data, for every entry
+    private final int mask;
+    private volatile int age;
+
+    /**
+     * Creates a table of 2^bits entries
+     */
+    public TranspositionTable(int bits)
+    {
+        slots = new AtomicLongArray(3 << bits);
+        mask = (1 << bits) - 1;
+    }
+
+    /**
+     * Marks the entries stored so far as old, so the next search can replace them
+     */
+    public void newSearch() {
+        age = (age + 1) & 0x3F;
+    }
+
+    /**
+     * Fills in the entry stored for the hash, or sets its depth to 0 if there is none
+     */
+    public void probe(long hash, Entry entry) {
+        int index = 3 * ((int) hash & mask);
+        long value = slots.get(index + 1);
+        long data = slots.get(index + 2);
+        // every stored entry has a depth of at least 1, so its data is never 0
+        if (data == 0 || (slots.get(index) ^ value ^ data) != hash) {
+            entry.depth = 0;
+            entry.bestChild = -1;
+            return;
+        }
+        entry.value = Double.longBitsToDouble(value);
+        entry.depth = (int) data & 0xFF;
+        entry.bound = (int) (data >>> 8) & 0x3;
+        entry.bestChild = data >>> 16;
+    }
+
+    /**
+     * Stores a searched position unless its slot holds a deeper search of this age
+     */
+    public void store(long hash, int depth, int bound, double value, long bestChildHash) {
+        int index = 3 * ((int) hash & mask);
+        long old = slots.get(index + 2);
+        if (old != 0 && ((old >>> 10) & 0x3F) == age && (old & 0xFF) > depth) {
+            return;
+        }
+        long valueBits = Double.doubleToLongBits(value);
+        long data = Math.min(depth, 0xFF)
+                | ((long) bound << 8)
+                | ((long) age << 10)
+                | (bestChildHash << 16);
+        slots.set(index, hash ^ valueBits ^ data);
+        slots.set(index + 1, valueBits);
+        slots.set(index + 2, data);
+    }
+}
@@ -0,0 +1,50 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * Zobrist keys for GameState hashing.
+ *
+ * A position is hashed as the xor of one key for every unit's cell, one for every unit's
+ * HP and one more when it is the archers' turn. A move then only changes the hash by the
+ * keys of what it changed, so a child's hash is its parent's with a few keys xored in and
+ * out instead of a walk over every unit.
+ *
+ * The keys are not kept in a table filled from a random generator, they are a fixed mix
+ * of the unit ID and the value. That way they are the same from one turn to the next, so
+ * the transposition table carries over between turns, and any thread can compute them.
+ */
+public final class Zobrist {
+
+    private static final long POSITION = 0x9E3779B97F4A7C15L;
+    private static final long HEALTH = 0xC2B2AE3D27D4EB4FL;
+
+    /**
+     * Xored in when the archers are the ones to move
+     */
+    public static final long ARCHERS_TO_MOVE = mix(0x165667B19E3779F9L);
+
+    private Zobrist() {
+    }
+
+    /**
+     * Key for a unit standing on a cell
+     */
+    public static long position(int unitId, int x, int y) {
+        return mix(POSITION ^ ((long) unitId << 40) ^ ((long) x << 20) ^ y);
+    }
+
+    /**
+     * Key for a unit having the given HP
+     */
+    public static long health(int unitId, int hp) {
+        return mix(HEALTH ^ ((long) unitId << 32) ^ (hp & 0xFFFFFFFFL));
+    }
+
+    /**
+     * SplitMix64 finalizer, so keys for neighbouring values share no bit patterns
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}